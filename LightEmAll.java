@@ -1,5 +1,24 @@
 import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import tester.*;
 import javalib.impworld.*;
 import java.awt.Color;
@@ -12,6 +31,8 @@ class LightEmAll extends World {
   ArrayList<GamePiece> nodes;
   // a list of edges of the minimum spanning tree (MST)
   ArrayList<Edge> mst;
+  // the layout of the board: which cells exist and which cells neighbour each other
+  ITopology topology;
   // board width and height
   int width;
   int height;
@@ -21,161 +42,263 @@ class LightEmAll extends World {
   // effective radius for extra credit (to be computed later)
   int radius;
   int tileSize;
+  // where timings and counts from the hot paths are recorded
+  Metrics metrics;
+  // the source of edge weights and scrambling; seed it to reproduce a board
+  Random rand;
+  // clicks and key presses waiting for the next tick
+  InputQueue input;
+  // the last image drawn for each cell id, and the wires and power it was drawn with
+  WorldImage[] tileImages;
+  int[] tileStates;
 
   // Constructor for LightEmAll; initializes game parameters and board using Kruskal's algorithm.
   public LightEmAll(int width, int height, int tileSize) {
-    this.width = width;
-    this.height = height;
+    this(new SquareTopology(width, height), tileSize);
+  }
+
+  // Constructor for LightEmAll on an arbitrary board layout (square, torus, hex, ...).
+  // Metrics are recorded when the lightemall.metrics system property is true.
+  public LightEmAll(ITopology topology, int tileSize) {
+    this(topology, tileSize, new Metrics(Boolean.getBoolean("lightemall.metrics")));
+  }
+
+  // Constructor for LightEmAll that records into the given metrics registry.
+  public LightEmAll(ITopology topology, int tileSize, Metrics metrics) {
+    this(topology, tileSize, metrics, new Random());
+  }
+
+  // Constructor for LightEmAll that draws every random choice from the given Random,
+  // so the same seed always generates the same board.
+  public LightEmAll(ITopology topology, int tileSize, Metrics metrics, Random rand) {
+    this.topology = topology;
+    this.metrics = metrics;
+    this.rand = rand;
+    this.width = topology.width();
+    this.height = topology.height();
     this.tileSize = tileSize;
     this.nodes = new ArrayList<>();
     this.mst = new ArrayList<>();
     this.powerRow = 0;
     this.powerCol = 0;
     this.radius = 0;
+    this.input = new InputQueue(topology.cellCount(), topology.directions());
     initializeBoard();
+    updatePoweredStatus();
+  }
+
+  // Constructor for LightEmAll on a board that is already laid out, such as a loaded level.
+  public LightEmAll(ITopology topology, int tileSize, ArrayList<GamePiece> nodes,
+      int powerRow, int powerCol) {
+    this.topology = topology;
+    this.metrics = new Metrics(Boolean.getBoolean("lightemall.metrics"));
+    this.rand = new Random();
+    this.width = topology.width();
+    this.height = topology.height();
+    this.tileSize = tileSize;
+    this.nodes = nodes;
+    this.mst = new ArrayList<>();
+    this.powerRow = powerRow;
+    this.powerCol = powerCol;
+    this.radius = 0;
+    this.input = new InputQueue(topology.cellCount(), topology.directions());
+    updatePoweredStatus();
   }
 
   // Generates the board using Kruskal's algorithm to form a minimum spanning tree.
   void initializeBoard() {
-    // Create a grid of GamePieces with all connections initially set to false.
-    GamePiece[][] grid = new GamePiece[height][width];
-    for (int row = 0; row < height; row = row + 1) {
-      for (int col = 0; col < width; col = col + 1) {
-        boolean isPowerStation = (row == 0 && col == 0);
-        grid[row][col] = new GamePiece(row, col, false, false, false, false, isPowerStation, false);
-        nodes.add(grid[row][col]);
-      }
+    BoardGeneratedEvent event = new BoardGeneratedEvent();
+    event.begin();
+    long phaseStart = System.nanoTime();
+    // Create one GamePiece per cell with no connections; cell ids are row-major.
+    GamePiece[] cells = new GamePiece[topology.cellCount()];
+    for (int id = 0; id < cells.length; id = id + 1) {
+      int row = topology.rowOf(id);
+      int col = topology.colOf(id);
+      boolean isPowerStation = (row == 0 && col == 0);
+      cells[id] = new GamePiece(row, col, 0, isPowerStation, false);
+      nodes.add(cells[id]);
     }
-    // Create list of all potential edges between adjacent GamePieces with random weights.
+    // Create list of all potential edges by scanning the adjacency of each cell once.
+    // Each undirected edge is seen from both ends, so only the lower id adds it.
     ArrayList<Edge> allEdges = new ArrayList<>();
-    for (int row = 0; row < height; row = row + 1) {
-      for (int col = 0; col < width; col = col + 1) {
-        if (col < width - 1) { // right neighbor exists
-          int weight = (int)(Math.random() * 100);
-          allEdges.add(new Edge(grid[row][col], grid[row][col + 1], weight));
-        }
-        if (row < height - 1) { // bottom neighbor exists
-          int weight = (int)(Math.random() * 100);
-          allEdges.add(new Edge(grid[row][col], grid[row + 1][col], weight));
+    for (int id = 0; id < cells.length; id = id + 1) {
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        int other = topology.adjacencyCell(k);
+        if (id < other) {
+          int weight = rand.nextInt(100);
+          allEdges.add(new Edge(cells[id], cells[other], weight, topology.adjacencyDirection(k)));
         }
       }
     }
+    long edgesDone = System.nanoTime();
     // Sort all potential edges by their weight.
     new SortEdges().sortEdgesList(allEdges);
+    long sortDone = System.nanoTime();
     // Use union-find and Kruskal's algorithm to select edges for the MST.
     UnionFind uf = new UnionFind(nodes); // UnionFind data structure to manage connected components.
     for (Edge e : allEdges) {
       if (uf.find(e.fromNode) != uf.find(e.toNode)) {
         uf.union(e.fromNode, e.toNode);
         mst.add(e);
-        // Set connectivity based on the relative positions of the two connected GamePieces.
-        if (e.fromNode.row == e.toNode.row) { // horizontal neighbors
-          if (e.fromNode.col < e.toNode.col) {
-            e.fromNode.right = true;
-            e.toNode.left = true;
-          } else {
-            e.fromNode.left = true;
-            e.toNode.right = true;
-          }
-        }
-        else if (e.fromNode.col == e.toNode.col) { // vertical neighbors
-          if (e.fromNode.row < e.toNode.row) {
-            e.fromNode.bottom = true;
-            e.toNode.top = true;
-          } else {
-            e.fromNode.top = true;
-            e.toNode.bottom = true;
-          }
-        }
+        // Wire both ends: the edge's direction on one side, its opposite on the other.
+        e.fromNode.addWire(e.direction);
+        e.toNode.addWire(topology.opposite(e.direction));
       }
     }
+    long kruskalDone = System.nanoTime();
     // Randomly rotate each tile to scramble the board.
     for (GamePiece gp : nodes) {
       tileSpinRandom(gp);
     }
+    long scrambleDone = System.nanoTime();
+
+    event.cells = cells.length;
+    event.edges = allEdges.size();
+    event.edgeBuildNanos = edgesDone - phaseStart;
+    event.sortNanos = sortDone - edgesDone;
+    event.kruskalNanos = kruskalDone - sortDone;
+    event.scrambleNanos = scrambleDone - kruskalDone;
+    event.commit();
+    if (metrics.enabled) {
+      metrics.record("board.edgeBuild.nanos", event.edgeBuildNanos);
+      metrics.record("board.sort.nanos", event.sortNanos);
+      metrics.record("board.kruskal.nanos", event.kruskalNanos);
+      metrics.record("board.scramble.nanos", event.scrambleNanos);
+    }
   }
 
-  // Generates the scene of the game.
+  // Generates the scene of the game. Power is already up to date; only tiles whose wires,
+  // power or power station changed since the last scene get a new image.
   public WorldScene makeScene() {
-    WorldScene scene = new WorldScene(tileSize * width, tileSize * height);
-    updatePoweredStatus();
+    SceneRenderedEvent event = new SceneRenderedEvent();
+    event.begin();
+    long start = metrics.now();
+    int images = 0;
+    WorldScene scene = new WorldScene(topology.sceneWidth(tileSize),
+        topology.sceneHeight(tileSize));
+    if (tileImages == null || tileImages.length != topology.cellCount()) {
+      tileImages = new WorldImage[topology.cellCount()];
+      tileStates = new int[topology.cellCount()];
+    }
 
     for (GamePiece gp : nodes) {
-      Color wireColor;
-      if (gp.powered) {
-        wireColor = Color.YELLOW;
+      int id = topology.cellId(gp.row, gp.col);
+      int state = gp.wires | (gp.powered ? 1 << 8 : 0) | (gp.powerStation ? 1 << 9 : 0);
+      WorldImage img;
+      if (id >= 0 && tileImages[id] != null && tileStates[id] == state) {
+        img = tileImages[id];
       }
       else {
-        wireColor = Color.GRAY;
+        Color wireColor;
+        if (gp.powered) {
+          wireColor = Color.YELLOW;
+        }
+        else {
+          wireColor = Color.GRAY;
+        }
+        img = gp.tileImage(topology, tileSize, 5, wireColor, gp.powerStation);
+        images = images + 1;
+        if (id >= 0) {
+          tileImages[id] = img;
+          tileStates[id] = state;
+        }
       }
-
-      WorldImage img = gp.tileImage(tileSize, 5, wireColor, gp.powerStation);
-      int x = gp.col * tileSize + tileSize / 2;
-      int y = gp.row * tileSize + tileSize / 2;
+      int x = topology.centerX(gp.row, gp.col, tileSize);
+      int y = topology.centerY(gp.row, gp.col, tileSize);
       scene.placeImageXY(img, x, y);
     }
 
     if (allPowered()) {
       scene.placeImageXY(new TextImage("You Win!", 40, Color.RED),
-          tileSize * width / 2, tileSize * height / 2);
+          topology.sceneWidth(tileSize) / 2, topology.sceneHeight(tileSize) / 2);
+      images = images + 1;
+    }
+
+    event.tiles = nodes.size();
+    event.images = images;
+    event.commit();
+    if (metrics.enabled) {
+      metrics.recordSince("scene.nanos", start);
+      metrics.record("scene.tiles", nodes.size());
+      metrics.record("scene.images", images);
     }
     return scene;
   }
 
   // Spreads power through connected GamePieces using breadth-first search.
   void updatePoweredStatus() {
+    PowerPropagatedEvent event = new PowerPropagatedEvent();
+    event.begin();
+    long begin = metrics.now();
+    int visited = 0;
+    int queuePeak = 0;
     for (GamePiece gp : nodes) {
       gp.powered = false;
     }
+    GamePiece[] cells = indexCells();
     Queue<GamePiece> queue = new Queue<>();
-    GamePiece start = findPiece(powerRow, powerCol);
+    int startId = topology.cellId(powerRow, powerCol);
 
-    if (start != null) {
+    if (startId >= 0 && cells[startId] != null) {
+      GamePiece start = cells[startId];
       start.powered = true;
       queue.addAtTail(start);
+      queuePeak = 1;
       while (!queue.isEmpty()) {
         GamePiece current = queue.removeFromHead();
-        checkNeighbor(current, current.row - 1, current.col, current.top, queue);
-        checkNeighbor(current, current.row + 1, current.col, current.bottom, queue);
-        checkNeighbor(current, current.row, current.col - 1, current.left, queue);
-        checkNeighbor(current, current.row, current.col + 1, current.right, queue);
+        visited = visited + 1;
+        int id = topology.cellId(current.row, current.col);
+        for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+          checkNeighbor(current, cells[topology.adjacencyCell(k)],
+              topology.adjacencyDirection(k), queue);
+        }
+        queuePeak = Math.max(queuePeak, queue.size());
       }
     }
+
+    event.visited = visited;
+    event.queuePeak = queuePeak;
+    event.commit();
+    if (metrics.enabled) {
+      metrics.recordSince("power.nanos", begin);
+      metrics.record("power.visited", visited);
+      metrics.record("power.queuePeak", queuePeak);
+    }
   }
 
-  // Checks and powers neighbor if connected to current piece.
-  void checkNeighbor(
-      GamePiece current, int row, int col, boolean connected, Queue<GamePiece> queue) {
-    if (connected) {
-      GamePiece neighbor = findPiece(row, col);
-      if (neighbor != null && !neighbor.powered && isConnected(current, neighbor)) {
-        neighbor.powered = true;
-        queue.addAtTail(neighbor);
-      }
+  // Checks and powers neighbor if it is connected to current piece in the given direction.
+  void checkNeighbor(GamePiece current, GamePiece neighbor, int direction, Queue<GamePiece> queue) {
+    if (neighbor != null && !neighbor.powered && current.hasWire(direction)
+        && neighbor.hasWire(topology.opposite(direction))) {
+      neighbor.powered = true;
+      queue.addAtTail(neighbor);
     }
   }
 
-  // Returns true if two adjacent pieces are connected.
-  boolean isConnected(GamePiece from, GamePiece to) {
-    if (from.row == to.row) {
-      if (from.col < to.col) {
-        return from.right && to.left;
-      }
-      else {
-        return from.left && to.right;
+  // Returns an array of the nodes indexed by cell id; cells without a piece are null.
+  GamePiece[] indexCells() {
+    GamePiece[] cells = new GamePiece[topology.cellCount()];
+    for (GamePiece gp : nodes) {
+      int id = topology.cellId(gp.row, gp.col);
+      if (id >= 0) {
+        cells[id] = gp;
       }
     }
-    else if (from.col == to.col) {
-      if (from.row < to.row) {
-        return from.bottom && to.top;
-      }
-      else {
-        return from.top && to.bottom;
+    return cells;
+  }
+
+  // Returns true if two adjacent pieces are connected along any direction joining them;
+  // on a narrow torus two cells can neighbour each other in more than one direction.
+  boolean isConnected(GamePiece from, GamePiece to) {
+    int target = topology.cellId(to.row, to.col);
+    for (int d = 0; d < topology.directions(); d = d + 1) {
+      if (target >= 0 && topology.neighbor(from.row, from.col, d) == target
+          && from.hasWire(d) && to.hasWire(topology.opposite(d))) {
+        return true;
       }
     }
-    else {
-      return false;
-    }
+    return false;
   }
 
   // Retrieves GamePiece at specified grid position.
@@ -198,293 +321,1923 @@ class LightEmAll extends World {
     return true;
   }
 
-  // Rotates clicked piece and updates power flow.
-  public void onMouseClicked(Posn pos, String buttonName) {
-    int clickedCol = pos.x / tileSize;
-    int clickedRow = pos.y / tileSize;
-
-    for (GamePiece gp : nodes) {
-      if (gp.row == clickedRow && gp.col == clickedCol) {
-        rotatePiece(gp);
-        updatePoweredStatus();
-      }
+  // Queues a turn of the clicked piece for the next tick.
+  public void onMouseClicked(Posn pos, String buttonName) {
+    int cell = topology.cellId(topology.rowAt(pos.x, pos.y, tileSize),
+        topology.colAt(pos.x, pos.y, tileSize));
+    if (cell >= 0) {
+      input.click(cell);
+    }
+  }
+
+  // Queues a move of the power station for the next tick; "m" prints the metrics right away.
+  public void onKeyEvent(String key) {
+    if (key.equals("m") && metrics.enabled) {
+      System.out.print(metrics.snapshot());
+    }
+    else {
+      input.key(key);
+    }
+  }
+
+  // Applies the input queued since the last tick.
+  public void onTick() {
+    applyInput();
+  }
+
+  // Applies all queued input as one batch, in the order it arrived: before each key press,
+  // the turns merged since the previous key; then the turns after the last key; then a
+  // single power update. Moving the power station only reads wires, so power can wait.
+  void applyInput() {
+    if (input.isEmpty()) {
+      return;
+    }
+    InputAppliedEvent event = new InputAppliedEvent();
+    event.begin();
+    GamePiece[] cells = indexCells();
+    input.seal();
+    int applied = 0;
+    for (int k = 0; k < input.keys.size(); k = k + 1) {
+      applyTurns(cells, applied, input.keyMarks[k]);
+      applied = input.keyMarks[k];
+      movePowerStation(input.keys.get(k), cells);
+    }
+    applyTurns(cells, applied, input.logCount);
+    updatePoweredStatus();
+
+    event.events = input.events;
+    event.cells = input.logCount;
+    event.keys = input.keys.size();
+    event.latencyNanos = System.nanoTime() - input.firstQueued;
+    event.commit();
+    if (metrics.enabled) {
+      metrics.record("input.nanos", event.latencyNanos);
+      metrics.record("input.events", input.events);
+    }
+    input.clear();
+  }
+
+  // Turns the pieces of the input log entries from (inclusive) to (exclusive).
+  // - cells: the nodes indexed by cell id
+  void applyTurns(GamePiece[] cells, int from, int to) {
+    for (int i = from; i < to; i = i + 1) {
+      GamePiece gp = cells[input.logCells[i]];
+      if (gp != null) {
+        for (int turn = 0; turn < input.logTurns[i]; turn = turn + 1) {
+          rotatePiece(gp);
+        }
+      }
+    }
+  }
+
+  // Moves the power station one step in the direction of the key, if that cell is connected.
+  // - cells: the nodes indexed by cell id
+  void movePowerStation(String key, GamePiece[] cells) {
+    int currentId = topology.cellId(powerRow, powerCol);
+    int direction = topology.keyDirection(key);
+    if (currentId < 0 || cells[currentId] == null || direction < 0) {
+      return;
+    }
+
+    int targetId = topology.neighbor(powerRow, powerCol, direction);
+    if (targetId < 0) {
+      return;
+    }
+    // check the wires along the key's own direction: on a narrow torus the target may also
+    // be joined to this cell along the opposite direction
+    GamePiece current = cells[currentId];
+    GamePiece target = cells[targetId];
+    if (target != null && current.hasWire(direction)
+        && target.hasWire(topology.opposite(direction))) {
+      current.powerStation = false;
+      target.powerStation = true;
+      powerRow = target.row;
+      powerCol = target.col;
+    }
+  }
+
+  // Rotates a game piece one step clockwise (90 degrees on a square board).
+  void rotatePiece(GamePiece gp) {
+    gp.wires = topology.rotate(gp.wires);
+  }
+
+  // Randomly rotates a game piece a number of times.
+  void tileSpinRandom(GamePiece gp) {
+    double randomSpin = rand.nextDouble() * topology.directions();
+    for (double i = 0.0; i < randomSpin; i = i + 1.0) {
+      rotatePiece(gp);
+    }
+  }
+}
+
+// describes the layout of a board: its cells, the wire directions a tile can have,
+// and which cell lies in each direction from every cell
+interface ITopology {
+  // the number of columns and rows of cells
+  int width();
+
+  int height();
+
+  // the number of wire directions per tile; directions are numbered clockwise from 0
+  int directions();
+
+  // the direction pointing back along the given direction
+  int opposite(int direction);
+
+  // the wire mask after one clockwise rotation of the tile
+  int rotate(int wires);
+
+  // the number of cells; cell ids run from 0 to cellCount() - 1 in row-major order
+  int cellCount();
+
+  // the id of the cell at (row, col), or -1 if there is no such cell
+  int cellId(int row, int col);
+
+  int rowOf(int cell);
+
+  int colOf(int cell);
+
+  // the id of the cell in the given direction from (row, col), or -1 if there is none
+  int neighbor(int row, int col, int direction);
+
+  // Compressed-sparse-row adjacency: the neighbours of a cell are the entries
+  // adjacencyStart(cell) (inclusive) to adjacencyStart(cell + 1) (exclusive).
+  int adjacencyStart(int cell);
+
+  // the neighbouring cell of the given adjacency entry
+  int adjacencyCell(int entry);
+
+  // the direction from the owning cell to the neighbour of the given adjacency entry
+  int adjacencyDirection(int entry);
+
+  // the angle of the given direction in degrees, clockwise from straight up
+  double angle(int direction);
+
+  // the direction a key moves the power station in, or -1 if the key does not move it
+  int keyDirection(String key);
+
+  // the pixel center of the cell at (row, col)
+  int centerX(int row, int col, int tileSize);
+
+  int centerY(int row, int col, int tileSize);
+
+  // the cell under the pixel (x, y)
+  int rowAt(int x, int y, int tileSize);
+
+  int colAt(int x, int y, int tileSize);
+
+  // the size of the scene needed to draw every cell
+  int sceneWidth(int tileSize);
+
+  int sceneHeight(int tileSize);
+
+  // the code saved levels use for this layout
+  int levelKind();
+}
+
+// shared behaviour for topologies laid out as a rectangle of rows and columns
+abstract class ATopology implements ITopology {
+  int width;
+  int height;
+  // CSR adjacency: neighbours of cell c are adjCell[adjStart[c]] .. adjCell[adjStart[c + 1] - 1]
+  int[] adjStart;
+  int[] adjCell;
+  int[] adjDirection;
+
+  // Builds the adjacency arrays; subclasses must not rely on their own fields in neighbor().
+  ATopology(int width, int height) {
+    this.width = Math.max(width, 0);
+    this.height = Math.max(height, 0);
+    int cells = this.width * this.height;
+    this.adjStart = new int[cells + 1];
+    for (int id = 0; id < cells; id = id + 1) {
+      int count = 0;
+      for (int d = 0; d < directions(); d = d + 1) {
+        if (neighbor(rowOf(id), colOf(id), d) >= 0) {
+          count = count + 1;
+        }
+      }
+      this.adjStart[id + 1] = this.adjStart[id] + count;
+    }
+    this.adjCell = new int[this.adjStart[cells]];
+    this.adjDirection = new int[this.adjStart[cells]];
+    for (int id = 0; id < cells; id = id + 1) {
+      int k = this.adjStart[id];
+      for (int d = 0; d < directions(); d = d + 1) {
+        int other = neighbor(rowOf(id), colOf(id), d);
+        if (other >= 0) {
+          this.adjCell[k] = other;
+          this.adjDirection[k] = d;
+          k = k + 1;
+        }
+      }
+    }
+  }
+
+  // the row reached by one step in the given direction, ignoring the board edges
+  abstract int stepRow(int row, int col, int direction);
+
+  // the column reached by one step in the given direction, ignoring the board edges
+  abstract int stepCol(int row, int col, int direction);
+
+  public int width() {
+    return this.width;
+  }
+
+  public int height() {
+    return this.height;
+  }
+
+  public int opposite(int direction) {
+    return (direction + directions() / 2) % directions();
+  }
+
+  public int rotate(int wires) {
+    int n = directions();
+    return ((wires << 1) | (wires >>> (n - 1))) & ((1 << n) - 1);
+  }
+
+  public int cellCount() {
+    return this.width * this.height;
+  }
+
+  public int cellId(int row, int col) {
+    if (row < 0 || row >= this.height || col < 0 || col >= this.width) {
+      return -1;
+    }
+    return row * this.width + col;
+  }
+
+  public int rowOf(int cell) {
+    return cell / this.width;
+  }
+
+  public int colOf(int cell) {
+    return cell % this.width;
+  }
+
+  public int neighbor(int row, int col, int direction) {
+    return cellId(stepRow(row, col, direction), stepCol(row, col, direction));
+  }
+
+  public int adjacencyStart(int cell) {
+    return this.adjStart[cell];
+  }
+
+  public int adjacencyCell(int entry) {
+    return this.adjCell[entry];
+  }
+
+  public int adjacencyDirection(int entry) {
+    return this.adjDirection[entry];
+  }
+
+  public int centerX(int row, int col, int tileSize) {
+    return col * tileSize + tileSize / 2;
+  }
+
+  public int centerY(int row, int col, int tileSize) {
+    return row * tileSize + tileSize / 2;
+  }
+
+  public int rowAt(int x, int y, int tileSize) {
+    return y / tileSize;
+  }
+
+  public int colAt(int x, int y, int tileSize) {
+    return x / tileSize;
+  }
+
+  public int sceneWidth(int tileSize) {
+    return tileSize * this.width;
+  }
+
+  public int sceneHeight(int tileSize) {
+    return tileSize * this.height;
+  }
+}
+
+// the classic board: four directions, no wrap-around at the edges
+class SquareTopology extends ATopology {
+  static final int TOP = 0;
+  static final int RIGHT = 1;
+  static final int BOTTOM = 2;
+  static final int LEFT = 3;
+
+  SquareTopology(int width, int height) {
+    super(width, height);
+  }
+
+  public int levelKind() {
+    return LevelFile.SQUARE;
+  }
+
+  public int directions() {
+    return 4;
+  }
+
+  int stepRow(int row, int col, int direction) {
+    if (direction == TOP) {
+      return row - 1;
+    }
+    else if (direction == BOTTOM) {
+      return row + 1;
+    }
+    else {
+      return row;
+    }
+  }
+
+  int stepCol(int row, int col, int direction) {
+    if (direction == LEFT) {
+      return col - 1;
+    }
+    else if (direction == RIGHT) {
+      return col + 1;
+    }
+    else {
+      return col;
+    }
+  }
+
+  public double angle(int direction) {
+    return direction * 90.0;
+  }
+
+  public int keyDirection(String key) {
+    if (key.equals("up")) {
+      return TOP;
+    }
+    else if (key.equals("down")) {
+      return BOTTOM;
+    }
+    else if (key.equals("left")) {
+      return LEFT;
+    }
+    else if (key.equals("right")) {
+      return RIGHT;
+    }
+    else {
+      return -1;
+    }
+  }
+}
+
+// a square board whose edges wrap around: the last column neighbours the first, and so on
+class TorusTopology extends SquareTopology {
+  TorusTopology(int width, int height) {
+    super(width, height);
+  }
+
+  public int levelKind() {
+    return LevelFile.TORUS;
+  }
+
+  public int neighbor(int row, int col, int direction) {
+    if (cellId(row, col) < 0) {
+      return -1;
+    }
+    return cellId(Math.floorMod(stepRow(row, col, direction), this.height),
+        Math.floorMod(stepCol(row, col, direction), this.width));
+  }
+}
+
+// a hexagonal board drawn as offset rows (odd rows shifted right by half a tile),
+// with six directions clockwise from north-east
+class HexTopology extends ATopology {
+  static final int NORTH_EAST = 0;
+  static final int EAST = 1;
+  static final int SOUTH_EAST = 2;
+  static final int SOUTH_WEST = 3;
+  static final int WEST = 4;
+  static final int NORTH_WEST = 5;
+
+  HexTopology(int width, int height) {
+    super(width, height);
+  }
+
+  public int levelKind() {
+    return LevelFile.HEX;
+  }
+
+  public int directions() {
+    return 6;
+  }
+
+  // true if the row is shifted right by half a tile
+  boolean shifted(int row) {
+    return Math.floorMod(row, 2) == 1;
+  }
+
+  int stepRow(int row, int col, int direction) {
+    if (direction == NORTH_EAST || direction == NORTH_WEST) {
+      return row - 1;
+    }
+    else if (direction == SOUTH_EAST || direction == SOUTH_WEST) {
+      return row + 1;
+    }
+    else {
+      return row;
+    }
+  }
+
+  int stepCol(int row, int col, int direction) {
+    if (direction == EAST) {
+      return col + 1;
+    }
+    else if (direction == WEST) {
+      return col - 1;
+    }
+    else if (direction == NORTH_EAST || direction == SOUTH_EAST) {
+      return shifted(row) ? col + 1 : col;
+    }
+    else {
+      return shifted(row) ? col : col - 1;
+    }
+  }
+
+  // Diagonal wires point at the center of the neighbour half a tile over and one tile up or down.
+  public double angle(int direction) {
+    double diagonal = Math.toDegrees(Math.atan2(0.5, 1.0));
+    if (direction == NORTH_EAST) {
+      return diagonal;
+    }
+    else if (direction == EAST) {
+      return 90.0;
+    }
+    else if (direction == SOUTH_EAST) {
+      return 180.0 - diagonal;
+    }
+    else if (direction == SOUTH_WEST) {
+      return 180.0 + diagonal;
+    }
+    else if (direction == WEST) {
+      return 270.0;
+    }
+    else {
+      return 360.0 - diagonal;
+    }
+  }
+
+  // The arrow keys move sideways; q/e/z/c move along the diagonals.
+  public int keyDirection(String key) {
+    if (key.equals("e")) {
+      return NORTH_EAST;
+    }
+    else if (key.equals("right") || key.equals("d")) {
+      return EAST;
+    }
+    else if (key.equals("c")) {
+      return SOUTH_EAST;
+    }
+    else if (key.equals("z")) {
+      return SOUTH_WEST;
+    }
+    else if (key.equals("left") || key.equals("a")) {
+      return WEST;
+    }
+    else if (key.equals("q")) {
+      return NORTH_WEST;
+    }
+    else {
+      return -1;
+    }
+  }
+
+  public int centerX(int row, int col, int tileSize) {
+    return super.centerX(row, col, tileSize) + (shifted(row) ? tileSize / 2 : 0);
+  }
+
+  public int colAt(int x, int y, int tileSize) {
+    int shift = shifted(rowAt(x, y, tileSize)) ? tileSize / 2 : 0;
+    return Math.floorDiv(x - shift, tileSize);
+  }
+
+  public int sceneWidth(int tileSize) {
+    return super.sceneWidth(tileSize) + (this.height > 1 ? tileSize / 2 : 0);
+  }
+}
+
+// reads and writes saved levels: a fixed header, then one wire-mask byte per cell in
+// row-major order, where bit d is set if the tile has a wire in direction d
+class LevelFile {
+  // "LEA1"
+  static final int MAGIC = 0x4C454131;
+  // magic, kind, width, height, power row, power column
+  static final int HEADER_BYTES = 21;
+  // values of ITopology.levelKind()
+  static final int SQUARE = 0;
+  static final int TORUS = 1;
+  static final int HEX = 2;
+  // the most cells a loaded level may have: the adjacency arrays hold up to six entries
+  // per cell in a single int array
+  static final long MAX_CELLS = (Integer.MAX_VALUE - 8) / 6;
+
+  // Returns the header for a level with the given layout and power station.
+  ByteBuffer header(int kind, int width, int height, int powerRow, int powerCol) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).put((byte) kind).putInt(width).putInt(height)
+        .putInt(powerRow).putInt(powerCol);
+    header.flip();
+    return header;
+  }
+
+  // Returns the topology with the given level kind and size.
+  ITopology topology(int kind, int width, int height) {
+    if (kind == SQUARE) {
+      return new SquareTopology(width, height);
+    }
+    else if (kind == TORUS) {
+      return new TorusTopology(width, height);
+    }
+    else if (kind == HEX) {
+      return new HexTopology(width, height);
+    }
+    else {
+      throw new IllegalArgumentException("Unknown level kind " + kind);
+    }
+  }
+
+  // Saves the game's board, as currently rotated, to the file.
+  void save(LightEmAll game, Path path) throws IOException {
+    ITopology topology = game.topology;
+    GamePiece[] cells = game.indexCells();
+    ByteBuffer body = ByteBuffer.allocate(cells.length);
+    for (GamePiece gp : cells) {
+      body.put((byte) (gp == null ? 0 : gp.wires));
+    }
+    body.flip();
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer header = header(topology.levelKind(), topology.width(), topology.height(),
+          game.powerRow, game.powerCol);
+      while (header.hasRemaining()) {
+        out.write(header);
+      }
+      while (body.hasRemaining()) {
+        out.write(body);
+      }
+    }
+  }
+
+  // Loads a saved level into a new game.
+  LightEmAll load(Path path, int tileSize) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(in, header);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a level file: " + path);
+      }
+      int kind = header.get();
+      int width = header.getInt();
+      int height = header.getInt();
+      if (width < 0 || height < 0) {
+        throw new IOException("Level has a negative size: " + width + "x" + height);
+      }
+      if ((long) width * height > MAX_CELLS) {
+        throw new IOException("Level too large to load: " + width + "x" + height);
+      }
+      ITopology topology = topology(kind, width, height);
+      int powerRow = header.getInt();
+      int powerCol = header.getInt();
+
+      ByteBuffer body = ByteBuffer.allocate(topology.cellCount());
+      readFully(in, body);
+      ArrayList<GamePiece> nodes = new ArrayList<>();
+      for (int id = 0; id < topology.cellCount(); id = id + 1) {
+        int row = topology.rowOf(id);
+        int col = topology.colOf(id);
+        nodes.add(new GamePiece(row, col, body.get() & 0xFF,
+            row == powerRow && col == powerCol, false));
+      }
+      return new LightEmAll(topology, tileSize, nodes, powerRow, powerCol);
+    }
+  }
+
+  // Fills the buffer from the channel and flips it for reading.
+  void readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) < 0) {
+        throw new IOException("Level file is truncated");
+      }
+    }
+    buffer.flip();
+  }
+}
+
+// generates a square board row by row with Eller's algorithm and writes each finished row
+// straight to a level file, so memory grows with the width and not with the board
+class StreamingBoardGenerator {
+  int width;
+  int height;
+  Random rand;
+  // cells written per second by the last generate()
+  double cellsPerSecond;
+
+  StreamingBoardGenerator(int width, int height, Random rand) {
+    this.width = width;
+    this.height = height;
+    this.rand = rand;
+  }
+
+  // Writes a scrambled spanning-tree board with the power station at (0, 0) to the file
+  // and returns the number of cells written.
+  long generate(Path path) throws IOException {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Board size must be positive: " + width + "x" + height);
+    }
+    long start = System.nanoTime();
+    LevelFile format = new LevelFile();
+    ITopology square = new SquareTopology(0, 0);
+    // labels of the current row are 0..width-1 for cells joined from above, and
+    // width + c for a cell c that starts a new set
+    int[] set = new int[width];
+    int[] nextSet = new int[width];
+    int[] parent = new int[2 * width];
+    int[] remaining = new int[2 * width];
+    boolean[] dropped = new boolean[2 * width];
+    int[] relabel = new int[2 * width];
+    byte[] row = new byte[width];
+    byte[] below = new byte[width];
+    Arrays.fill(set, -1);
+
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+      buffer.put(format.header(LevelFile.SQUARE, width, height, 0, 0));
+
+      for (int r = 0; r < height; r = r + 1) {
+        boolean last = r == height - 1;
+        for (int i = 0; i < 2 * width; i = i + 1) {
+          parent[i] = i;
+          remaining[i] = 0;
+          dropped[i] = false;
+          relabel[i] = -1;
+        }
+        for (int c = 0; c < width; c = c + 1) {
+          row[c] = below[c];
+          below[c] = 0;
+          if (set[c] < 0) {
+            set[c] = width + c;
+          }
+        }
+
+        // join neighbours in different sets at random; the last row must join them all
+        for (int c = 0; c + 1 < width; c = c + 1) {
+          int a = root(parent, set[c]);
+          int b = root(parent, set[c + 1]);
+          if (a != b && (last || rand.nextBoolean())) {
+            parent[a] = b;
+            row[c] = (byte) (row[c] | 1 << SquareTopology.RIGHT);
+            row[c + 1] = (byte) (row[c + 1] | 1 << SquareTopology.LEFT);
+          }
+        }
+
+        // carry each set down at random, and at least once, so nothing is cut off
+        if (!last) {
+          for (int c = 0; c < width; c = c + 1) {
+            set[c] = root(parent, set[c]);
+            remaining[set[c]] = remaining[set[c]] + 1;
+          }
+          int labels = 0;
+          for (int c = 0; c < width; c = c + 1) {
+            int s = set[c];
+            remaining[s] = remaining[s] - 1;
+            if (rand.nextBoolean() || (remaining[s] == 0 && !dropped[s])) {
+              dropped[s] = true;
+              row[c] = (byte) (row[c] | 1 << SquareTopology.BOTTOM);
+              below[c] = (byte) (1 << SquareTopology.TOP);
+              if (relabel[s] < 0) {
+                relabel[s] = labels;
+                labels = labels + 1;
+              }
+              nextSet[c] = relabel[s];
+            }
+            else {
+              nextSet[c] = -1;
+            }
+          }
+          int[] swap = set;
+          set = nextSet;
+          nextSet = swap;
+        }
+
+        // scramble and write the finished row
+        for (int c = 0; c < width; c = c + 1) {
+          int wires = row[c];
+          for (int turn = rand.nextInt(4); turn > 0; turn = turn - 1) {
+            wires = square.rotate(wires);
+          }
+          if (!buffer.hasRemaining()) {
+            drain(out, buffer);
+          }
+          buffer.put((byte) wires);
+        }
+      }
+      drain(out, buffer);
+    }
+
+    long cells = (long) width * height;
+    cellsPerSecond = cells / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+    return cells;
+  }
+
+  // The root of a label in the current row's union-find.
+  int root(int[] parent, int label) {
+    while (parent[label] != label) {
+      parent[label] = parent[parent[label]];
+      label = parent[label];
+    }
+    return label;
+  }
+
+  // Writes everything in the buffer to the channel and clears it.
+  void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // Usage: StreamingBoardGenerator width height seed out.level
+  public static void main(String[] args) throws IOException {
+    StreamingBoardGenerator generator = new StreamingBoardGenerator(Integer.parseInt(args[0]),
+        Integer.parseInt(args[1]), new Random(Long.parseLong(args[2])));
+    long cells = generator.generate(Paths.get(args[3]));
+    System.out.printf("%d cells at %.0f cells/s%n", cells, generator.cellsPerSecond);
+  }
+}
+
+// New class: UnionFind - a union-find data structure for managing disjoint sets of GamePieces.
+class UnionFind {
+  // Maps each GamePiece to its parent in the union-find structure.
+  HashMap<GamePiece, GamePiece> parent;
+
+  // Constructor: initializes each GamePiece to be its own parent.
+  UnionFind(ArrayList<GamePiece> items) {
+    parent = new HashMap<>();
+    for (GamePiece item : items) {
+      parent.put(item, item);
+    }
+  }
+
+  // Finds the representative (root) of the set that contains the given item.
+  GamePiece find(GamePiece item) {
+    if (parent.get(item) != item) {
+      parent.put(item, find(parent.get(item))); // path compression
+    }
+    return parent.get(item);
+  }
+
+  // Unions the sets containing the two given GamePieces.
+  void union(GamePiece a, GamePiece b) {
+    GamePiece repA = find(a);
+    GamePiece repB = find(b);
+    parent.put(repA, repB);
+  }
+}
+
+// holds the game pieces information for the game
+class GamePiece {
+  // in logical coordinates, with the origin at the top-left corner of the screen
+  int row;
+  int col;
+  // connectivity to adjacent pieces: bit d is set if this piece has a wire in direction d
+  int wires;
+  // whether the power station is on this piece
+  boolean powerStation;
+  // whether this piece is powered
+  boolean powered;
+
+  GamePiece(int row, int col, int wires, boolean powerStation, boolean powered) {
+    this.row = row;
+    this.col = col;
+    this.wires = wires;
+    this.powerStation = powerStation;
+    this.powered = powered;
+  }
+
+  // Convenience constructor for a piece on a square board.
+  GamePiece(int row, int col, boolean left, boolean right, 
+      boolean top, boolean bottom, boolean powerStation, boolean powered) {
+    this(row, col, 0, powerStation, powered);
+    if (left) {
+      addWire(SquareTopology.LEFT);
+    }
+    if (right) {
+      addWire(SquareTopology.RIGHT);
+    }
+    if (top) {
+      addWire(SquareTopology.TOP);
+    }
+    if (bottom) {
+      addWire(SquareTopology.BOTTOM);
+    }
+  }
+
+  // Does this piece have a wire in the given direction?
+  boolean hasWire(int direction) {
+    return (this.wires & (1 << direction)) != 0;
+  }
+
+  // Adds a wire in the given direction.
+  void addWire(int direction) {
+    this.wires = this.wires | (1 << direction);
+  }
+
+  // Generate an image of this GamePiece on a square board.
+  WorldImage tileImage(int size, int wireWidth, Color wireColor, boolean hasPowerStation) {
+    return tileImage(new SquareTopology(0, 0), size, wireWidth, wireColor, hasPowerStation);
+  }
+
+  // Generate an image of this GamePiece.
+  // - topology: gives the angle each wire is drawn at
+  // - size: the size of the tile, in pixels
+  // - wireWidth: the width of wires, in pixels
+  // - wireColor: the Color to use for rendering wires on this tile
+  // - hasPowerStation: if true, draws a fancy star to represent the power station
+  WorldImage tileImage(ITopology topology, int size, int wireWidth, Color wireColor,
+      boolean hasPowerStation) {
+    WorldImage image = new OverlayImage(
+        new RectangleImage(wireWidth, wireWidth, OutlineMode.SOLID, wireColor),
+        new RectangleImage(size, size, OutlineMode.SOLID, Color.DARK_GRAY));
+
+    for (int d = 0; d < topology.directions(); d = d + 1) {
+      if (this.hasWire(d)) {
+        // each wire runs from the center to the edge of the tile along its angle
+        double radians = Math.toRadians(topology.angle(d));
+        double dx = Math.sin(radians);
+        double dy = -Math.cos(radians);
+        double length = (size + 1) / 2.0 / Math.max(Math.abs(dx), Math.abs(dy));
+        WorldImage wire = new RotateImage(
+            new RectangleImage(wireWidth, (int) Math.round(length), OutlineMode.SOLID, wireColor),
+            topology.angle(d));
+        image = new OverlayOffsetImage(wire, -dx * length / 2, -dy * length / 2, image);
+      }
+    }
+    
+    if (hasPowerStation) {
+      image = new OverlayImage(
+        new OverlayImage(
+          new StarImage(size / 3, 7, OutlineMode.OUTLINE, new Color(255, 128, 0)),
+          new StarImage(size / 3, 7, OutlineMode.SOLID, new Color(0, 255, 255))
+        ),
+        image
+      );
+    }
+    return image;
+  }
+}
+
+// represents an edge between two GamePieces with an associated weight
+class Edge {
+  GamePiece fromNode;
+  GamePiece toNode;
+  int weight;
+  // the direction leading from fromNode to toNode, or -1 if unknown
+  int direction;
+
+  Edge(GamePiece fromNode, GamePiece toNode, int weight) {
+    this(fromNode, toNode, weight, -1);
+  }
+
+  Edge(GamePiece fromNode, GamePiece toNode, int weight, int direction) {
+    this.fromNode = fromNode;
+    this.toNode = toNode;
+    this.weight = weight;
+    this.direction = direction;
+  }
+}
+
+// sorts a list of Edge objects in ascending order based on weight
+class SortEdges {
+  // Sorts the given list of edges with a stable O(n log n) merge sort.
+  void sortEdgesList(ArrayList<Edge> listOfEdges) {
+    listOfEdges.sort((a, b) -> Integer.compare(a.weight, b.weight));
+  }
+}
+
+// simple node class for internal collection usage in queue/deque
+class Node<T> {
+  T data;
+  Node<T> next;
+  Node<T> prev;
+
+  Node(T data) {
+    this.data = data;
+    this.next = null;
+    this.prev = null;
+  }
+}
+
+// double-ended queue implementation
+class Deque<T> implements ICollection<T> {
+  Node<T> head;
+  Node<T> tail;
+  int size;
+
+  Deque() {
+    this.head = null;
+    this.tail = null;
+    this.size = 0;
+  }
+
+  public boolean isEmpty() {
+    return this.head == null;
+  }
+
+  public void addAtTail(T item) {
+    Node<T> addedNode = new Node<T>(item);
+    if (isEmpty()) {
+      this.head = addedNode;
+      this.tail = addedNode;
+    } else {
+      this.tail.next = addedNode;
+      addedNode.prev = this.tail;
+      this.tail = addedNode;
+    }
+    this.size = this.size + 1;
+  }
+
+  public T removeFromHead() {
+    if (isEmpty()) {
+      throw new RuntimeException("Deque has no data");
+    }
+    T result = this.head.data;
+    this.head = this.head.next;
+    this.size = this.size - 1;
+    return result;
+  }
+
+  public int size() {
+    return this.size;
+  }
+}
+
+// simple queue implementation using Deque
+class Queue<T> implements ICollection<T> {
+  Deque<T> contents;
+
+  Queue() {
+    this.contents = new Deque<T>();
+  }
+
+  public boolean isEmpty() {
+    return this.contents.isEmpty();
+  }
+
+  public void addAtTail(T item) {
+    this.contents.addAtTail(item);
+  }
+
+  public T removeFromHead() {
+    return this.contents.removeFromHead();
+  }
+  
+  public int size() {
+    return this.contents.size();
+  }
+}
+
+// generic collection interface
+interface ICollection<T> {
+  boolean isEmpty();
+  
+  void addAtTail(T item);
+  
+  T removeFromHead();
+}
+
+// input waiting for the next tick: clicks on the same cell are merged into one count of
+// turns, modulo the number of directions, until a key press; each key press seals the
+// turns merged before it into the log, so clicks and keys are applied in arrival order
+class InputQueue {
+  // pending clockwise turns for each cell id since the last seal
+  int[] turns;
+  // whether each cell id is listed in touched
+  boolean[] listed;
+  // the cells clicked since the last seal, in order of first click
+  int[] touched;
+  int touchedCount;
+  // sealed (cell, turns) entries, in the order they must be applied
+  int[] logCells;
+  int[] logTurns;
+  int logCount;
+  // key presses since the last tick, and for each the number of log entries before it
+  ArrayList<String> keys;
+  int[] keyMarks;
+  // the number of clicks and key presses since the last tick
+  int events;
+  // System.nanoTime() when the first of them was queued
+  long firstQueued;
+  int directions;
+
+  InputQueue(int cells, int directions) {
+    this.turns = new int[cells];
+    this.listed = new boolean[cells];
+    this.touched = new int[cells];
+    this.logCells = new int[Math.max(cells, 1)];
+    this.logTurns = new int[Math.max(cells, 1)];
+    this.keys = new ArrayList<>();
+    this.keyMarks = new int[8];
+    this.directions = directions;
+  }
+
+  // Queues one clockwise turn of the cell.
+  void click(int cell) {
+    queued();
+    turns[cell] = (turns[cell] + 1) % directions;
+    if (!listed[cell]) {
+      listed[cell] = true;
+      touched[touchedCount] = cell;
+      touchedCount = touchedCount + 1;
+    }
+  }
+
+  // Queues a key press after every turn queued so far.
+  void key(String key) {
+    queued();
+    seal();
+    if (keys.size() == keyMarks.length) {
+      keyMarks = Arrays.copyOf(keyMarks, keyMarks.length * 2);
+    }
+    keyMarks[keys.size()] = logCount;
+    keys.add(key);
+  }
+
+  // Moves the turns merged since the last seal into the log, skipping cells whose turns
+  // cancelled out, and starts merging afresh.
+  void seal() {
+    if (logCount + touchedCount > logCells.length) {
+      int size = Math.max(logCells.length * 2, logCount + touchedCount);
+      logCells = Arrays.copyOf(logCells, size);
+      logTurns = Arrays.copyOf(logTurns, size);
+    }
+    for (int i = 0; i < touchedCount; i = i + 1) {
+      int cell = touched[i];
+      if (turns[cell] != 0) {
+        logCells[logCount] = cell;
+        logTurns[logCount] = turns[cell];
+        logCount = logCount + 1;
+      }
+      turns[cell] = 0;
+      listed[cell] = false;
+    }
+    touchedCount = 0;
+  }
+
+  // Counts one event and notes the time if it is the first since the last tick.
+  void queued() {
+    if (events == 0) {
+      firstQueued = System.nanoTime();
+    }
+    events = events + 1;
+  }
+
+  // Is there nothing to apply?
+  boolean isEmpty() {
+    return events == 0;
+  }
+
+  // Forgets everything queued, touching only the cells that were clicked.
+  void clear() {
+    for (int i = 0; i < touchedCount; i = i + 1) {
+      turns[touched[i]] = 0;
+      listed[touched[i]] = false;
+    }
+    touchedCount = 0;
+    logCount = 0;
+    keys.clear();
+    events = 0;
+  }
+}
+
+// a registry of named histograms that the game's hot paths record into; while disabled
+// nothing is recorded, so the hooks can stay in production builds
+class Metrics {
+  // whether values are recorded at all
+  boolean enabled;
+  // histograms by name, created on first use
+  ConcurrentHashMap<String, Histogram> histograms;
+
+  Metrics(boolean enabled) {
+    this.enabled = enabled;
+    this.histograms = new ConcurrentHashMap<>();
+  }
+
+  // Returns the histogram with the given name, creating it if needed.
+  Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new Histogram(n));
+  }
+
+  // Records a value under the given name, if enabled.
+  void record(String name, long value) {
+    if (enabled) {
+      histogram(name).record(value);
+    }
+  }
+
+  // The current time in nanoseconds, or 0 when disabled so the clock is not read.
+  long now() {
+    if (enabled) {
+      return System.nanoTime();
+    }
+    return 0;
+  }
+
+  // Records the nanoseconds elapsed since a time returned by now(), if enabled.
+  void recordSince(String name, long start) {
+    if (enabled) {
+      histogram(name).record(System.nanoTime() - start);
+    }
+  }
+
+  // Renders every histogram, sorted by name, one summary line and one bucket line each.
+  String snapshot() {
+    ArrayList<String> names = new ArrayList<>(histograms.keySet());
+    names.sort(null);
+    StringBuilder out = new StringBuilder();
+    for (String name : names) {
+      out.append(histograms.get(name).snapshot());
+    }
+    return out.toString();
+  }
+}
+
+// a thread-safe histogram of non-negative values in power-of-two buckets
+class Histogram {
+  String name;
+  // bucket i counts values v with 2^(i-1) <= v < 2^i; bucket 0 counts zeros
+  AtomicLongArray buckets;
+  LongAdder count;
+  LongAdder sum;
+  AtomicLong max;
+
+  Histogram(String name) {
+    this.name = name;
+    this.buckets = new AtomicLongArray(64);
+    this.count = new LongAdder();
+    this.sum = new LongAdder();
+    this.max = new AtomicLong();
+  }
+
+  // Adds one value; negative values are counted as zero.
+  void record(long value) {
+    long v = Math.max(value, 0);
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+    count.increment();
+    sum.add(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  // Adds every value recorded in the other histogram to this one.
+  void merge(Histogram other) {
+    for (int i = 0; i < buckets.length(); i = i + 1) {
+      buckets.addAndGet(i, other.buckets.get(i));
+    }
+    count.add(other.count.sum());
+    sum.add(other.sum.sum());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  // An upper bound on the given fraction (0 to 1) of recorded values: the top of its bucket.
+  long percentile(double fraction) {
+    long total = count.sum();
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i = i + 1) {
+      seen = seen + buckets.get(i);
+      if (total > 0 && seen >= fraction * total) {
+        return Math.min((1L << i) - 1, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  // Renders a summary line followed by the non-empty buckets as "upperBound:count".
+  String snapshot() {
+    long n = count.sum();
+    StringBuilder out = new StringBuilder();
+    out.append(name).append(" count=").append(n)
+        .append(" mean=").append(n == 0 ? 0 : sum.sum() / n)
+        .append(" p50=").append(percentile(0.5))
+        .append(" p99=").append(percentile(0.99))
+        .append(" max=").append(max.get()).append("\n ");
+    for (int i = 0; i < buckets.length(); i = i + 1) {
+      if (buckets.get(i) > 0) {
+        out.append(' ').append((1L << i) - 1)
+            .append(':').append(buckets.get(i));
+      }
+    }
+    return out.append('\n').toString();
+  }
+}
+
+// JFR event for one run of initializeBoard, with the time spent in each phase
+@Name("lightemall.BoardGenerated")
+@Label("Board Generated")
+@Category("LightEmAll")
+class BoardGeneratedEvent extends Event {
+  @Label("Cells")
+  int cells;
+  @Label("Candidate Edges")
+  int edges;
+  @Label("Edge Build (ns)")
+  long edgeBuildNanos;
+  @Label("Sort (ns)")
+  long sortNanos;
+  @Label("Kruskal (ns)")
+  long kruskalNanos;
+  @Label("Scramble (ns)")
+  long scrambleNanos;
+}
+
+// JFR event for one run of updatePoweredStatus
+@Name("lightemall.PowerPropagated")
+@Label("Power Propagated")
+@Category("LightEmAll")
+class PowerPropagatedEvent extends Event {
+  @Label("Cells Visited")
+  int visited;
+  @Label("Queue Peak")
+  int queuePeak;
+}
+
+// JFR event for one run of makeScene
+@Name("lightemall.SceneRendered")
+@Label("Scene Rendered")
+@Category("LightEmAll")
+class SceneRenderedEvent extends Event {
+  @Label("Tiles Placed")
+  int tiles;
+  @Label("Images Built")
+  int images;
+}
+
+// JFR event for applying one tick's worth of queued input
+@Name("lightemall.InputApplied")
+@Label("Input Applied")
+@Category("LightEmAll")
+class InputAppliedEvent extends Event {
+  @Label("Events Queued")
+  int events;
+  @Label("Cells Turned")
+  int cells;
+  @Label("Keys")
+  int keys;
+  @Label("Latency Of Oldest Event (ns)")
+  long latencyNanos;
+}
+
+// counts the distinct ways the tiles of a board can be rotated so that every cell is
+// powered. Each cell keeps the set of rotations still possible; settling a wire on one side
+// of an edge forces the other side, and these forced moves are followed to a fixpoint
+// before guessing a rotation for the least certain cell.
+class BoardSolver {
+  ITopology topology;
+  // the wires of each cell as dealt, by cell id
+  int[] original;
+  // the cell holding the power station
+  int powerCell;
+  // stop after finding this many solutions
+  int limit;
+  // stop after this many guesses
+  long maxEffort;
+  // true if the wires can only form a spanning tree, so any loop rules a state out
+  boolean treeOnly;
+  // the number of distinct rotations of each cell's tile
+  int[] period;
+  // rotations[id * MAX_ROTATIONS + r] is the wires of cell id turned r times
+  int[] rotations;
+  // the directions in which each cell has a neighbour
+  int[] open;
+  // bit r is set if rotation r of the cell is still possible
+  int[] options;
+  // undo log of (cell, old options) pairs
+  int[] trail;
+  int trailTop;
+  // the guess stack: the cell guessed, the rotations not yet tried, and the trail height
+  int[] guessCell;
+  int[] guessLeft;
+  int[] guessMark;
+  // scratch space for propagation, the structure check and the connectivity check
+  int[] queue;
+  int[] seen;
+  int stamp;
+  int[] parent;
+  int[] size;
+  int[] unsettled;
+  // results of the last solve()
+  int solutions;
+  long effort;
+  boolean gaveUp;
+
+  static final int MAX_ROTATIONS = 6;
+
+  BoardSolver(ITopology topology, int[] wires, int powerCell, int limit, long maxEffort) {
+    this.topology = topology;
+    this.original = wires;
+    this.powerCell = powerCell;
+    this.limit = limit;
+    this.maxEffort = maxEffort;
+    int cells = topology.cellCount();
+    this.period = new int[cells];
+    this.rotations = new int[cells * MAX_ROTATIONS];
+    this.open = new int[cells];
+    this.options = new int[cells];
+    this.guessCell = new int[cells + 1];
+    this.guessLeft = new int[cells + 1];
+    this.guessMark = new int[cells + 1];
+    this.queue = new int[cells];
+    this.seen = new int[cells];
+    this.parent = new int[cells];
+    this.size = new int[cells];
+    this.unsettled = new int[cells];
+    int wireEnds = 0;
+    for (int id = 0; id < cells; id = id + 1) {
+      int m = wires[id];
+      do {
+        this.rotations[id * MAX_ROTATIONS + this.period[id]] = m;
+        this.period[id] = this.period[id] + 1;
+        m = topology.rotate(m);
+      } while (m != wires[id]);
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        this.open[id] = this.open[id] | (1 << topology.adjacencyDirection(k));
+      }
+      wireEnds = wireEnds + Integer.bitCount(wires[id]);
+    }
+    this.treeOnly = wireEnds == 2 * (cells - 1);
+    // every option of every cell can be removed at most once on the way down
+    this.trail = new int[2 * (cells * MAX_ROTATIONS + 1)];
+  }
+
+  // Searches for solutions; returns the number found, at most limit.
+  int solve() {
+    int cells = topology.cellCount();
+    this.solutions = 0;
+    this.effort = 0;
+    this.gaveUp = false;
+    this.trailTop = 0;
+    for (int id = 0; id < cells; id = id + 1) {
+      options[id] = 0;
+      for (int r = 0; r < period[id]; r = r + 1) {
+        if ((rotations[id * MAX_ROTATIONS + r] & ~open[id]) == 0) {
+          options[id] = options[id] | (1 << r);
+        }
+      }
+    }
+    boolean consistent = true;
+    for (int id = 0; id < cells && consistent; id = id + 1) {
+      consistent = options[id] != 0 && propagate(id);
+    }
+
+    int depth = 0;
+    while (consistent) {
+      int cell = structureHolds() ? leastCertainCell() : -2;
+      if (cell == -1 && allReached()) {
+        solutions = solutions + 1;
+      }
+      if (solutions >= limit) {
+        return solutions;
+      }
+      if (cell >= 0) {
+        if (effort >= maxEffort) {
+          gaveUp = true;
+          return solutions;
+        }
+        guessCell[depth] = cell;
+        guessLeft[depth] = options[cell];
+        guessMark[depth] = trailTop;
+        depth = depth + 1;
+      }
+      // take the next untried guess, backing up past guesses that have none left
+      consistent = false;
+      while (depth > 0 && !consistent) {
+        int top = depth - 1;
+        rollBack(guessMark[top]);
+        if (guessLeft[top] == 0) {
+          depth = top;
+        }
+        else {
+          int guess = Integer.lowestOneBit(guessLeft[top]);
+          guessLeft[top] = guessLeft[top] ^ guess;
+          effort = effort + 1;
+          restrict(guessCell[top], guess);
+          consistent = propagate(guessCell[top]);
+        }
+      }
+    }
+    return solutions;
+  }
+
+  // Did the last solve() stop because it ran out of effort rather than finishing?
+  boolean exhausted() {
+    return gaveUp;
+  }
+
+  // Follows forced moves outward from the cell until nothing changes; false if some cell
+  // is left without any possible rotation.
+  boolean propagate(int start) {
+    stamp = stamp + 1;
+    int head = 0;
+    int tail = 0;
+    int cells = queue.length;
+    queue[tail] = start;
+    tail = (tail + 1) % cells;
+    int queued = 1;
+    seen[start] = stamp;
+    while (queued > 0) {
+      int id = queue[head];
+      head = (head + 1) % cells;
+      queued = queued - 1;
+      seen[id] = stamp - 1;
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        int d = topology.adjacencyDirection(k);
+        int settled = settledWire(id, d);
+        if (settled >= 0) {
+          int other = topology.adjacencyCell(k);
+          int od = topology.opposite(d);
+          int keep = 0;
+          for (int left = options[other]; left != 0; left = left & (left - 1)) {
+            int r = Integer.numberOfTrailingZeros(left);
+            if (((rotations[other * MAX_ROTATIONS + r] >> od) & 1) == settled) {
+              keep = keep | (1 << r);
+            }
+          }
+          if (keep != options[other]) {
+            if (keep == 0) {
+              return false;
+            }
+            restrict(other, keep);
+            if (seen[other] != stamp) {
+              seen[other] = stamp;
+              queue[tail] = other;
+              tail = (tail + 1) % cells;
+              queued = queued + 1;
+            }
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  // 1 if every remaining rotation of the cell has a wire in the direction, 0 if none
+  // does, and -1 if that is still open.
+  int settledWire(int id, int direction) {
+    boolean on = false;
+    boolean off = false;
+    for (int left = options[id]; left != 0; left = left & (left - 1)) {
+      int r = Integer.numberOfTrailingZeros(left);
+      if (((rotations[id * MAX_ROTATIONS + r] >> direction) & 1) != 0) {
+        on = true;
+      }
+      else {
+        off = true;
+      }
+    }
+    if (on && off) {
+      return -1;
+    }
+    return on ? 1 : 0;
+  }
+
+  // Narrows the cell's options, logging the old ones so they can be restored.
+  void restrict(int id, int keep) {
+    trail[trailTop] = id;
+    trail[trailTop + 1] = options[id];
+    trailTop = trailTop + 2;
+    options[id] = keep;
+  }
+
+  // Restores every cell's options to the given undo log height.
+  void rollBack(int height) {
+    while (trailTop > height) {
+      trailTop = trailTop - 2;
+      options[trail[trailTop]] = trail[trailTop + 1];
+    }
+  }
+
+  // The undecided cell with the fewest rotations left, or -1 if every cell is decided.
+  int leastCertainCell() {
+    int best = -1;
+    int bestCount = Integer.MAX_VALUE;
+    for (int id = 0; id < options.length; id = id + 1) {
+      int count = Integer.bitCount(options[id]);
+      if (count > 1 && count < bestCount) {
+        best = id;
+        bestCount = count;
+      }
+    }
+    return best;
+  }
+
+  // Checks the wires that are already settled on both ends: they must not close a loop on
+  // a tree-only board, and no group they join may be sealed off short of the whole board.
+  boolean structureHolds() {
+    int cells = options.length;
+    for (int id = 0; id < cells; id = id + 1) {
+      parent[id] = id;
+      size[id] = 1;
+      unsettled[id] = 0;
+    }
+    for (int id = 0; id < cells; id = id + 1) {
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        int other = topology.adjacencyCell(k);
+        if (other >= id && settledWire(id, topology.adjacencyDirection(k)) == 1) {
+          int a = root(id);
+          int b = root(other);
+          if (a == b) {
+            if (treeOnly) {
+              return false;
+            }
+          }
+          else {
+            if (size[a] < size[b]) {
+              int swap = a;
+              a = b;
+              b = swap;
+            }
+            parent[b] = a;
+            size[a] = size[a] + size[b];
+          }
+        }
+      }
+    }
+    for (int id = 0; id < cells; id = id + 1) {
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        if (settledWire(id, topology.adjacencyDirection(k)) < 0) {
+          int r = root(id);
+          unsettled[r] = unsettled[r] + 1;
+        }
+      }
+    }
+    for (int id = 0; id < cells; id = id + 1) {
+      if (parent[id] == id && unsettled[id] == 0 && size[id] < cells) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The root of the group holding the cell, compressing the path on the way.
+  int root(int cell) {
+    while (parent[cell] != cell) {
+      parent[cell] = parent[parent[cell]];
+      cell = parent[cell];
     }
+    return cell;
   }
 
-  // Moves the power station if the target cell is connected.
-  public void onKeyEvent(String key) {
-    GamePiece current = findPiece(powerRow, powerCol);
-    if (current == null) {
-      return;
-    }
-
-    int newRow = powerRow;
-    int newCol = powerCol;
-
-    if (key.equals("up")) {
-      newRow = newRow - 1;
-    }
-    else if (key.equals("down")) {
-      newRow = newRow + 1;
+  // Does power from the power cell reach every cell, with each cell on its one rotation?
+  boolean allReached() {
+    int cells = topology.cellCount();
+    if (cells == 0) {
+      return true;
     }
-    else if (key.equals("left")) {
-      newCol = newCol - 1;
-    }
-    else if (key.equals("right")) {
-      newCol = newCol + 1;
+    stamp = stamp + 1;
+    int head = 0;
+    int tail = 0;
+    queue[tail] = powerCell;
+    tail = tail + 1;
+    seen[powerCell] = stamp;
+    while (head < tail) {
+      int id = queue[head];
+      head = head + 1;
+      int wires = rotations[id * MAX_ROTATIONS + Integer.numberOfTrailingZeros(options[id])];
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        int other = topology.adjacencyCell(k);
+        if (seen[other] != stamp && (wires & (1 << topology.adjacencyDirection(k))) != 0) {
+          seen[other] = stamp;
+          queue[tail] = other;
+          tail = tail + 1;
+        }
+      }
     }
+    return tail == cells;
+  }
+}
 
-    GamePiece target = findPiece(newRow, newCol);
-    if (target != null && isConnected(current, target)) {
-      current.powerStation = false;
-      target.powerStation = true;
-      powerRow = newRow;
-      powerCol = newCol;
-      updatePoweredStatus();
-    }
+// exact counts of small non-negative integer values
+class Tally {
+  // counts[v] is the number of times v was added
+  long[] counts;
+
+  Tally() {
+    this.counts = new long[8];
   }
 
-  // Rotates a game piece 90 degrees clockwise.
-  void rotatePiece(GamePiece gp) {
-    boolean temp = gp.top;
-    gp.top = gp.left;
-    gp.left = gp.bottom;
-    gp.bottom = gp.right;
-    gp.right = temp;
+  // Adds one occurrence of the value.
+  void add(int value) {
+    add(value, 1);
   }
 
-  // Randomly rotates a game piece a number of times.
-  void tileSpinRandom(GamePiece gp) {
-    double randomSpin = Math.random() * 4.0;
-    for (double i = 0.0; i < randomSpin; i = i + 1.0) {
-      rotatePiece(gp);
+  // Adds the given number of occurrences of the value.
+  void add(int value, long occurrences) {
+    if (value >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(value + 1, counts.length * 2));
     }
+    counts[value] = counts[value] + occurrences;
   }
-}
 
-// New class: UnionFind - a union-find data structure for managing disjoint sets of GamePieces.
-class UnionFind {
-  // Maps each GamePiece to its parent in the union-find structure.
-  HashMap<GamePiece, GamePiece> parent;
+  // Adds every occurrence counted in the other tally.
+  void addAll(Tally other) {
+    for (int v = other.counts.length - 1; v >= 0; v = v - 1) {
+      if (other.counts[v] > 0) {
+        add(v, other.counts[v]);
+      }
+    }
+  }
 
-  // Constructor: initializes each GamePiece to be its own parent.
-  UnionFind(ArrayList<GamePiece> items) {
-    parent = new HashMap<>();
-    for (GamePiece item : items) {
-      parent.put(item, item);
+  // The number of values added.
+  long total() {
+    long total = 0;
+    for (long c : counts) {
+      total = total + c;
     }
+    return total;
   }
 
-  // Finds the representative (root) of the set that contains the given item.
-  GamePiece find(GamePiece item) {
-    if (parent.get(item) != item) {
-      parent.put(item, find(parent.get(item))); // path compression
+  // The mean of the values added, or 0 if there are none.
+  double mean() {
+    long total = 0;
+    double sum = 0;
+    for (int v = 0; v < counts.length; v = v + 1) {
+      total = total + counts[v];
+      sum = sum + (double) v * counts[v];
     }
-    return parent.get(item);
+    return total == 0 ? 0 : sum / total;
   }
 
-  // Unions the sets containing the two given GamePieces.
-  void union(GamePiece a, GamePiece b) {
-    GamePiece repA = find(a);
-    GamePiece repB = find(b);
-    parent.put(repA, repB);
+  // The largest value added, or -1 if there are none.
+  int max() {
+    for (int v = counts.length - 1; v >= 0; v = v - 1) {
+      if (counts[v] > 0) {
+        return v;
+      }
+    }
+    return -1;
   }
 }
 
-// holds the game pieces information for the game
-class GamePiece {
-  // in logical coordinates, with the origin at the top-left corner of the screen
-  int row;
-  int col;
-  // connectivity to adjacent pieces
-  boolean left;
-  boolean right;
-  boolean top;
-  boolean bottom;
-  // whether the power station is on this piece
-  boolean powerStation;
-  // whether this piece is powered
-  boolean powered;
+// the statistics of one generated board
+class BoardReport {
+  int leaves;
+  // degrees[d] is the number of cells with d wires
+  int[] degrees;
+  int branching;
+  int diameter;
+  int longestFromPower;
+  int solutions;
+  long effort;
+  boolean exhausted;
+}
 
-  GamePiece(int row, int col, boolean left, boolean right, 
-      boolean top, boolean bottom, boolean powerStation, boolean powered) {
-    this.row = row;
-    this.col = col;
-    this.left = left;
-    this.right = right;
-    this.top = top;
-    this.bottom = bottom;
-    this.powerStation = powerStation;
-    this.powered = powered;
+// statistics aggregated over many boards; one instance per worker, merged at the end
+class BoardStats {
+  long boards;
+  // per-board values
+  Tally leaves;
+  Tally branching;
+  Tally diameter;
+  Tally longestFromPower;
+  Tally solutions;
+  // per-cell wire counts over every board
+  Tally degrees;
+  // solver guesses per board
+  Histogram effort;
+  // boards whose solver gave up before finishing; their solutions are not tallied
+  long exhausted;
+  // the solver stops counting here, so this many solutions means this many or more
+  int solutionLimit;
+
+  BoardStats(int solutionLimit) {
+    this.solutionLimit = solutionLimit;
+    this.leaves = new Tally();
+    this.branching = new Tally();
+    this.diameter = new Tally();
+    this.longestFromPower = new Tally();
+    this.solutions = new Tally();
+    this.degrees = new Tally();
+    this.effort = new Histogram("solver.effort");
   }
 
-  // Generate an image of this GamePiece.
-  // - size: the size of the tile, in pixels
-  // - wireWidth: the width of wires, in pixels
-  // - wireColor: the Color to use for rendering wires on this tile
-  // - hasPowerStation: if true, draws a fancy star to represent the power station
-  WorldImage tileImage(int size, int wireWidth, Color wireColor, boolean hasPowerStation) {
-    WorldImage image = new OverlayImage(
-        new RectangleImage(wireWidth, wireWidth, OutlineMode.SOLID, wireColor),
-        new RectangleImage(size, size, OutlineMode.SOLID, Color.DARK_GRAY));
-    WorldImage vWire = new RectangleImage(wireWidth, (size + 1) / 2, OutlineMode.SOLID, wireColor);
-    WorldImage hWire = new RectangleImage((size + 1) / 2, wireWidth, OutlineMode.SOLID, wireColor);
-
-    if (this.top) {
-      image = new OverlayOffsetAlign(AlignModeX.CENTER, AlignModeY.TOP, vWire, 0, 0, image);
-    }
-    
-    if (this.right) {
-      image = new OverlayOffsetAlign(AlignModeX.RIGHT, AlignModeY.MIDDLE, hWire, 0, 0, image);
-    }
-    
-    if (this.bottom) {
-      image = new OverlayOffsetAlign(AlignModeX.CENTER, AlignModeY.BOTTOM, vWire, 0, 0, image);
+  // Adds one board's report.
+  void add(BoardReport report) {
+    boards = boards + 1;
+    leaves.add(report.leaves);
+    branching.add(report.branching);
+    diameter.add(report.diameter);
+    longestFromPower.add(report.longestFromPower);
+    if (!report.exhausted) {
+      solutions.add(report.solutions);
     }
-    
-    if (this.left) {
-      image = new OverlayOffsetAlign(AlignModeX.LEFT, AlignModeY.MIDDLE, hWire, 0, 0, image);
+    for (int d = 0; d < report.degrees.length; d = d + 1) {
+      degrees.add(d, report.degrees[d]);
     }
-    
-    if (hasPowerStation) {
-      image = new OverlayImage(
-        new OverlayImage(
-          new StarImage(size / 3, 7, OutlineMode.OUTLINE, new Color(255, 128, 0)),
-          new StarImage(size / 3, 7, OutlineMode.SOLID, new Color(0, 255, 255))
-        ),
-        image
-      );
+    effort.record(report.effort);
+    if (report.exhausted) {
+      exhausted = exhausted + 1;
     }
-    return image;
   }
-}
-
-// represents an edge between two GamePieces with an associated weight
-class Edge {
-  GamePiece fromNode;
-  GamePiece toNode;
-  int weight;
 
-  Edge(GamePiece fromNode, GamePiece toNode, int weight) {
-    this.fromNode = fromNode;
-    this.toNode = toNode;
-    this.weight = weight;
+  // Adds everything aggregated by the other stats.
+  void merge(BoardStats other) {
+    boards = boards + other.boards;
+    leaves.addAll(other.leaves);
+    branching.addAll(other.branching);
+    diameter.addAll(other.diameter);
+    longestFromPower.addAll(other.longestFromPower);
+    solutions.addAll(other.solutions);
+    degrees.addAll(other.degrees);
+    effort.merge(other.effort);
+    exhausted = exhausted + other.exhausted;
   }
-}
 
-// sorts a list of Edge objects in ascending order based on weight
-class SortEdges {
-  // Sorts the given list of edges using a simple bubble sort.
-  void sortEdgesList(ArrayList<Edge> listOfEdges) {
-    for (int i = 0; i < listOfEdges.size() - 1; i = i + 1) {
-      for (int j = i + 1; j < listOfEdges.size(); j = j + 1) {
-        if (listOfEdges.get(i).weight > listOfEdges.get(j).weight) {
-          Edge changingIndex = listOfEdges.get(i);
-          listOfEdges.set(i, listOfEdges.get(j));
-          listOfEdges.set(j, changingIndex); 
+  // Writes every distribution as "metric,value,count" rows; effort values are bucket tops
+  // and the capped solution count is written with a trailing "+".
+  void writeCsv(Path path) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(path)) {
+      out.write("metric,value,count\n");
+      writeTally(out, "leaves", leaves, Integer.MAX_VALUE);
+      writeTally(out, "branching", branching, Integer.MAX_VALUE);
+      writeTally(out, "diameter", diameter, Integer.MAX_VALUE);
+      writeTally(out, "longestFromPower", longestFromPower, Integer.MAX_VALUE);
+      writeTally(out, "solutions", solutions, solutionLimit);
+      writeTally(out, "degree", degrees, Integer.MAX_VALUE);
+      for (int i = 0; i < effort.buckets.length(); i = i + 1) {
+        if (effort.buckets.get(i) > 0) {
+          out.write("effort," + ((1L << i) - 1) + "," + effort.buckets.get(i) + "\n");
         }
       }
+      out.write("exhausted,1," + exhausted + "\n");
     }
   }
-}
 
-// simple node class for internal collection usage in queue/deque
-class Node<T> {
-  T data;
-  Node<T> next;
-  Node<T> prev;
+  // Writes the non-zero counts of one tally; values from cap up are marked with a "+".
+  void writeTally(BufferedWriter out, String metric, Tally tally, int cap) throws IOException {
+    for (int v = 0; v < tally.counts.length; v = v + 1) {
+      if (tally.counts[v] > 0) {
+        String value = v >= cap ? v + "+" : Integer.toString(v);
+        out.write(metric + "," + value + "," + tally.counts[v] + "\n");
+      }
+    }
+  }
 
-  Node(T data) {
-    this.data = data;
-    this.next = null;
-    this.prev = null;
+  // A few human-readable lines with the mean and maximum of each distribution.
+  String summary() {
+    return "boards=" + boards + " solverExhausted=" + exhausted + "\n"
+        + summarize("leaves", leaves) + summarize("branching", branching)
+        + summarize("diameter", diameter) + summarize("longestFromPower", longestFromPower)
+        + summarize("solutions", solutions) + summarize("degree", degrees)
+        + effort.snapshot();
   }
-}
 
-// double-ended queue implementation
-class Deque<T> implements ICollection<T> {
-  Node<T> head;
-  Node<T> tail;
-  int size;
+  // One summary line for a tally.
+  String summarize(String metric, Tally tally) {
+    return String.format("%s mean=%.3f max=%d%n", metric, tally.mean(), tally.max());
+  }
+}
 
-  Deque() {
-    this.head = null;
-    this.tail = null;
-    this.size = 0;
+// a headless tool that generates many seeded boards across all cores and aggregates
+// difficulty statistics; boards are analyzed as they are made and never kept
+class BoardAnalyzer {
+  // shared by every board; it is not changed after construction
+  ITopology topology;
+  // board i is generated from boardSeed(i)
+  long seed;
+  // how many solutions to look for and how hard to look on each board
+  int solutionLimit;
+  long maxEffort;
+
+  BoardAnalyzer(ITopology topology, long seed, int solutionLimit, long maxEffort) {
+    this.topology = topology;
+    this.seed = seed;
+    this.solutionLimit = solutionLimit;
+    this.maxEffort = maxEffort;
   }
 
-  public boolean isEmpty() {
-    return this.head == null;
+  // Generates and analyzes the given number of boards in parallel.
+  BoardStats run(int boards) {
+    return IntStream.range(0, boards).parallel().collect(
+        () -> new BoardStats(solutionLimit), (stats, i) -> stats.add(analyze(boardSeed(i))),
+        BoardStats::merge);
   }
 
-  public void addAtTail(T item) {
-    Node<T> addedNode = new Node<T>(item);
-    if (isEmpty()) {
-      this.head = addedNode;
-      this.tail = addedNode;
-    } else {
-      this.tail.next = addedNode;
-      addedNode.prev = this.tail;
-      this.tail = addedNode;
-    }
-    this.size = this.size + 1;
+  // The seed of board i: one SplitMix64 step from the run's seed, because Random seeded
+  // with consecutive values starts out with correlated draws, and runs with nearby seeds
+  // would otherwise share most of their boards.
+  long boardSeed(int index) {
+    long z = seed + (index + 1L) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
   }
 
-  public T removeFromHead() {
-    if (isEmpty()) {
-      throw new RuntimeException("Deque has no data");
+  // Generates the board for one seed and measures it.
+  BoardReport analyze(long boardSeed) {
+    LightEmAll game = new LightEmAll(topology, 1, new Metrics(false), new Random(boardSeed));
+    int cells = topology.cellCount();
+    int[] dealt = new int[cells];
+    int[] solved = new int[cells];
+    for (GamePiece gp : game.nodes) {
+      dealt[topology.cellId(gp.row, gp.col)] = gp.wires;
+    }
+    for (Edge e : game.mst) {
+      solved[topology.cellId(e.fromNode.row, e.fromNode.col)] |= 1 << e.direction;
+      solved[topology.cellId(e.toNode.row, e.toNode.col)] |= 1 << topology.opposite(e.direction);
     }
-    T result = this.head.data;
-    this.head = this.head.next;
-    this.size = this.size - 1;
-    return result;
-  }
 
-  public int size() {
-    return this.size;
-  }
-}
+    BoardReport report = new BoardReport();
+    report.degrees = new int[topology.directions() + 1];
+    for (int id = 0; id < cells; id = id + 1) {
+      int degree = Integer.bitCount(solved[id]);
+      report.degrees[degree] = report.degrees[degree] + 1;
+      if (degree == 1) {
+        report.leaves = report.leaves + 1;
+      }
+      else if (degree >= 3) {
+        report.branching = report.branching + 1;
+      }
+    }
 
-// simple queue implementation using Deque
-class Queue<T> implements ICollection<T> {
-  Deque<T> contents;
+    int powerCell = topology.cellId(game.powerRow, game.powerCol);
+    if (cells > 0) {
+      int[] dist = new int[cells];
+      int far = farthest(solved, powerCell, dist);
+      report.longestFromPower = dist[far];
+      report.diameter = dist[farthest(solved, far, dist)];
+    }
 
-  Queue() {
-    this.contents = new Deque<T>();
+    BoardSolver solver = new BoardSolver(topology, dealt, powerCell, solutionLimit, maxEffort);
+    report.solutions = solver.solve();
+    report.effort = solver.effort;
+    report.exhausted = solver.exhausted();
+    return report;
   }
 
-  public boolean isEmpty() {
-    return this.contents.isEmpty();
+  // Fills dist with the number of wires from the start cell to each cell along the tree
+  // and returns a cell at the greatest distance.
+  int farthest(int[] wires, int start, int[] dist) {
+    Arrays.fill(dist, -1);
+    int[] queue = new int[dist.length];
+    int head = 0;
+    int tail = 1;
+    queue[0] = start;
+    dist[start] = 0;
+    int far = start;
+    while (head < tail) {
+      int id = queue[head];
+      head = head + 1;
+      if (dist[id] > dist[far]) {
+        far = id;
+      }
+      for (int k = topology.adjacencyStart(id); k < topology.adjacencyStart(id + 1); k = k + 1) {
+        int other = topology.adjacencyCell(k);
+        if (dist[other] < 0 && (wires[id] & (1 << topology.adjacencyDirection(k))) != 0) {
+          dist[other] = dist[id] + 1;
+          queue[tail] = other;
+          tail = tail + 1;
+        }
+      }
+    }
+    return far;
   }
 
-  public void addAtTail(T item) {
-    this.contents.addAtTail(item);
-  }
+  // Usage: BoardAnalyzer boards width height seed out.csv [square|torus|hex]
+  public static void main(String[] args) throws IOException {
+    int boards = Integer.parseInt(args[0]);
+    int width = Integer.parseInt(args[1]);
+    int height = Integer.parseInt(args[2]);
+    long seed = Long.parseLong(args[3]);
+    Path out = Paths.get(args[4]);
+    String mode = args.length > 5 ? args[5] : "square";
+    ITopology topology;
+    if (mode.equals("torus")) {
+      topology = new TorusTopology(width, height);
+    }
+    else if (mode.equals("hex")) {
+      topology = new HexTopology(width, height);
+    }
+    else {
+      topology = new SquareTopology(width, height);
+    }
 
-  public T removeFromHead() {
-    return this.contents.removeFromHead();
-  }
-  
-  public int size() {
-    return this.contents.size();
+    long start = System.nanoTime();
+    BoardStats stats = new BoardAnalyzer(topology, seed, 2, 1_000_000).run(boards);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    stats.writeCsv(out);
+    System.out.print(stats.summary());
+    System.out.printf("%d boards in %.1f s (%.0f boards/s)%n", boards, seconds, boards / seconds);
   }
 }
 
-// generic collection interface
-interface ICollection<T> {
-  boolean isEmpty();
-  
-  void addAtTail(T item);
-  
-  T removeFromHead();
-}
-
 // Test class
 class LightExamples {
   // Test for game
   void testGame(Tester t) {
     LightEmAll game = new LightEmAll(10, 10, 65);
-    game.bigBang(650, 650, 1.0);
+    game.bigBang(650, 650, 1.0 / 30);
   }
 
   // Test for findPiece method
@@ -500,16 +2253,16 @@ class LightExamples {
     GamePiece gp1 = new GamePiece(0, 0, true, false, false, false, false, false);
     LightEmAll game = new LightEmAll(1, 1, 50);
     game.rotatePiece(gp1);
-    t.checkExpect(gp1.top, true);
-    t.checkExpect(gp1.right, false);
+    t.checkExpect(gp1.hasWire(SquareTopology.TOP), true);
+    t.checkExpect(gp1.hasWire(SquareTopology.RIGHT), false);
     
     GamePiece gp2 = new GamePiece(0, 0, false, false, false, false, false, false);
     game.rotatePiece(gp2);
-    t.checkExpect(gp2.top, false);
+    t.checkExpect(gp2.hasWire(SquareTopology.TOP), false);
     
     GamePiece gp3 = new GamePiece(0, 0, true, true, true, true, false, false);
     game.rotatePiece(gp3);
-    t.checkExpect(gp3.left, true);
+    t.checkExpect(gp3.hasWire(SquareTopology.LEFT), true);
   }
 
   // Test for Deque operations
@@ -603,15 +2356,25 @@ class LightExamples {
   void testIsConnected(Tester t) {
     GamePiece a = new GamePiece(0, 0, false, false, false, false, false, false);
     GamePiece b = new GamePiece(0, 1, false, false, false, false, false, false);
-    t.checkExpect(new LightEmAll(1,1,50).isConnected(a, b), false);
+    t.checkExpect(new LightEmAll(2,1,50).isConnected(a, b), false);
     
-    a.right = true;
-    b.left = true;
-    t.checkExpect(new LightEmAll(1,2,50).isConnected(a, b), true);
+    a.addWire(SquareTopology.RIGHT);
+    b.addWire(SquareTopology.LEFT);
+    t.checkExpect(new LightEmAll(2,1,50).isConnected(a, b), true);
     
-    a.bottom = true;
+    a.addWire(SquareTopology.BOTTOM);
     GamePiece c = new GamePiece(1, 0, true, false, false, false, false, false);
-    t.checkExpect(new LightEmAll(2,1,50).isConnected(a, c), false);
+    t.checkExpect(new LightEmAll(2,2,50).isConnected(a, c), false);
+    t.checkExpect(new LightEmAll(1,1,50).isConnected(a, b), false);
+
+    // on a torus two cells wide, the wrap-around wires connect too
+    LightEmAll torus = new LightEmAll(new TorusTopology(2, 1), 50);
+    GamePiece p0 = new GamePiece(0, 0, true, false, false, false, false, false);
+    GamePiece p1 = new GamePiece(0, 1, false, true, false, false, false, false);
+    t.checkExpect(torus.isConnected(p0, p1), true);
+    t.checkExpect(torus.isConnected(p1, p0), true);
+    p1.wires = 1 << SquareTopology.LEFT;
+    t.checkExpect(torus.isConnected(p0, p1), false);
   }
 
   // Test for allPowered method
@@ -633,6 +2396,7 @@ class LightExamples {
   void testOnKeyEvent(Tester t) {
     LightEmAll game = new LightEmAll(2, 2, 50);
     game.onKeyEvent("left");
+    game.onTick();
     t.checkExpect(game.findPiece(0,0).powerStation, true);
 
     GamePiece start = new GamePiece(0,0,false,true,false,true,true,false);
@@ -642,13 +2406,16 @@ class LightExamples {
     nodes.add(below);
     game.nodes = nodes;
     game.onKeyEvent("down");
+    t.checkExpect(below.powerStation, false);
+    game.onTick();
     t.checkExpect(below.powerStation, true);
 
     GamePiece rightNeighbor = new GamePiece(0,1,true,false,false,false,false,false);
     nodes.add(rightNeighbor);
-    start.right = true;
-    rightNeighbor.left = true;
+    start.addWire(SquareTopology.RIGHT);
+    rightNeighbor.addWire(SquareTopology.LEFT);
     game.onKeyEvent("right");
+    game.onTick();
     t.checkExpect(rightNeighbor.powerStation, false);
   }
 
@@ -669,26 +2436,22 @@ class LightExamples {
     LightEmAll game = new LightEmAll(2, 2, 50);
     Queue<GamePiece> q1 = new Queue<>();
     game.checkNeighbor(new GamePiece(0,0,false,false,false,false,false,false), 
-                      1, 1, true, q1);
+                      null, SquareTopology.BOTTOM, q1);
     t.checkExpect(q1.size(), 0);
 
     GamePiece a = new GamePiece(0,0,false,true,false,false,true,true);
     GamePiece b = new GamePiece(0,1,true,false,false,false,false,true);
-    ArrayList<GamePiece> nodes = new ArrayList<>();
-    nodes.add(a);
-    nodes.add(b);
-    game.nodes = nodes;
     Queue<GamePiece> q2 = new Queue<>();
-    game.checkNeighbor(a, 0, 1, true, q2);
+    game.checkNeighbor(a, b, SquareTopology.RIGHT, q2);
     t.checkExpect(q2.size(), 0);
 
     GamePiece c = new GamePiece(1,0,false,false,true,false,false,false);
-    nodes.add(c);
-    a.bottom = true;
-    c.top = true;
+    a.addWire(SquareTopology.BOTTOM);
+    c.addWire(SquareTopology.TOP);
     Queue<GamePiece> q3 = new Queue<>();
-    game.checkNeighbor(a, 1, 0, true, q3);
+    game.checkNeighbor(a, c, SquareTopology.BOTTOM, q3);
     t.checkExpect(q3.size(), 1);
+    t.checkExpect(c.powered, true);
   }
 
   // Test for initializeBoard method
@@ -707,18 +2470,15 @@ class LightExamples {
   void testTileSpinRandom(Tester t) {
     GamePiece gp1 = new GamePiece(0,0,false,false,false,false,false,false);
     new LightEmAll(1,1,50).tileSpinRandom(gp1);
-    t.checkExpect(!gp1.top && !gp1.right && !gp1.bottom && !gp1.left, true
-    );
+    t.checkExpect(gp1.wires, 0);
     
     GamePiece gp2 = new GamePiece(0,0,true,false,false,false,false,false);
     new LightEmAll(1,1,50).tileSpinRandom(gp2);
-    t.checkExpect(gp2.top || gp2.right || gp2.bottom || gp2.left, true
-    );
+    t.checkExpect(gp2.wires != 0, true);
     
     GamePiece gp3 = new GamePiece(0,0,true,true,true,true,false,false);
     new LightEmAll(1,1,50).tileSpinRandom(gp3);
-    t.checkExpect(gp3.top && gp3.right && gp3.bottom && gp3.left, true
-    );
+    t.checkExpect(gp3.wires, 15);
   }
   
   // Test update powered status
@@ -727,10 +2487,10 @@ class LightExamples {
     GamePiece a = new GamePiece(0, 0, false, true, false, false, true, false);
     GamePiece b = new GamePiece(0, 1, true, true, false, false, false, false);
     GamePiece c = new GamePiece(0, 2, true, false, false, false, false, false);
-    a.right = true;
-    b.left = true;
-    b.right = true;
-    c.left = true;
+    a.addWire(SquareTopology.RIGHT);
+    b.addWire(SquareTopology.LEFT);
+    b.addWire(SquareTopology.RIGHT);
+    c.addWire(SquareTopology.LEFT);
     ArrayList<GamePiece> nodes = new ArrayList<>();
     nodes.add(a);
     nodes.add(b);
@@ -741,8 +2501,8 @@ class LightExamples {
 
     GamePiece d = new GamePiece(0, 0, true, false, true, false, true, false);
     GamePiece e = new GamePiece(1, 0, false, false, false, true, false, false);
-    d.bottom = true;
-    e.top = true;
+    d.addWire(SquareTopology.BOTTOM);
+    e.addWire(SquareTopology.TOP);
     ArrayList<GamePiece> nodes2 = new ArrayList<>();
     nodes2.add(d);
     nodes2.add(e);
@@ -755,10 +2515,10 @@ class LightExamples {
     GamePiece f = new GamePiece(0, 0, true, false, true, false, true, false);
     GamePiece g = new GamePiece(0, 1, false, false, false, false, false, false);
     GamePiece h = new GamePiece(1, 0, false, false, false, true, false, false);
-    f.right = true;
-    f.bottom = true;
-    g.left = true;
-    h.top = true;
+    f.addWire(SquareTopology.RIGHT);
+    f.addWire(SquareTopology.BOTTOM);
+    g.addWire(SquareTopology.LEFT);
+    h.addWire(SquareTopology.TOP);
     ArrayList<GamePiece> nodes3 = new ArrayList<>();
     nodes3.add(f);
     nodes3.add(g);
@@ -768,4 +2528,385 @@ class LightExamples {
     t.checkExpect(g.powered, true);
     t.checkExpect(h.powered, true);
   }
+
+  // Test for the CSR adjacency of each topology
+  void testTopologyAdjacency(Tester t) {
+    SquareTopology square = new SquareTopology(3, 2);
+    t.checkExpect(square.adjacencyStart(square.cellCount()), 14);
+    t.checkExpect(square.adjacencyStart(1) - square.adjacencyStart(0), 2);
+    t.checkExpect(square.neighbor(0, 0, SquareTopology.LEFT), -1);
+    t.checkExpect(square.neighbor(0, 0, SquareTopology.RIGHT), 1);
+
+    TorusTopology torus = new TorusTopology(3, 3);
+    t.checkExpect(torus.adjacencyStart(torus.cellCount()), 36);
+    t.checkExpect(torus.neighbor(0, 0, SquareTopology.LEFT), 2);
+    t.checkExpect(torus.neighbor(0, 0, SquareTopology.TOP), 6);
+    t.checkExpect(torus.neighbor(0, 2, SquareTopology.RIGHT), 0);
+
+    HexTopology hex = new HexTopology(3, 3);
+    t.checkExpect(hex.neighbor(1, 1, HexTopology.NORTH_EAST), hex.cellId(0, 2));
+    t.checkExpect(hex.neighbor(1, 1, HexTopology.SOUTH_WEST), hex.cellId(2, 1));
+    t.checkExpect(hex.neighbor(2, 1, HexTopology.NORTH_WEST), hex.cellId(1, 0));
+    t.checkExpect(hex.adjacencyStart(hex.cellId(1, 1) + 1) - hex.adjacencyStart(hex.cellId(1, 1)),
+        6);
+    t.checkExpect(hex.neighbor(0, 2, HexTopology.SOUTH_WEST), hex.cellId(1, 1));
+  }
+
+  // Test for rotating wire masks
+  void testRotateWires(Tester t) {
+    t.checkExpect(new SquareTopology(1, 1).rotate(1 << SquareTopology.LEFT),
+        1 << SquareTopology.TOP);
+    t.checkExpect(new HexTopology(1, 1).rotate(1 << HexTopology.NORTH_WEST),
+        1 << HexTopology.NORTH_EAST);
+    t.checkExpect(new HexTopology(1, 1).rotate(0b000011), 0b000110);
+    t.checkExpect(new HexTopology(1, 1).opposite(HexTopology.EAST), HexTopology.WEST);
+  }
+
+  // Test that every topology generates a spanning tree that powers the whole board when solved
+  void testGenerateOnTopologies(Tester t) {
+    LightEmAll torus = new LightEmAll(new TorusTopology(4, 3), 50);
+    t.checkExpect(torus.mst.size(), 11);
+    LightEmAll hex = new LightEmAll(new HexTopology(4, 3), 50);
+    t.checkExpect(hex.mst.size(), 11);
+
+    // undo the scramble by rewiring each piece straight from the tree's edges
+    for (GamePiece gp : hex.nodes) {
+      gp.wires = 0;
+    }
+    for (Edge e : hex.mst) {
+      e.fromNode.addWire(e.direction);
+      e.toNode.addWire(hex.topology.opposite(e.direction));
+    }
+    hex.updatePoweredStatus();
+    t.checkExpect(hex.allPowered(), true);
+    hex.rotatePiece(hex.findPiece(0, 0));
+    hex.updatePoweredStatus();
+    t.checkExpect(hex.allPowered(), false);
+  }
+
+  // Test for the metrics registry and histograms
+  void testMetrics(Tester t) {
+    Metrics off = new Metrics(false);
+    off.record("x", 5);
+    t.checkExpect(off.now(), 0L);
+    t.checkExpect(off.histograms.size(), 0);
+
+    Metrics on = new Metrics(true);
+    on.record("x", 0);
+    on.record("x", 3);
+    on.record("x", 100);
+    Histogram x = on.histogram("x");
+    t.checkExpect(x.count.sum(), 3L);
+    t.checkExpect(x.max.get(), 100L);
+    t.checkExpect(x.buckets.get(0), 1L);
+    t.checkExpect(x.buckets.get(2), 1L);
+    t.checkExpect(x.percentile(0.5), 3L);
+    t.checkExpect(x.percentile(1.0), 100L);
+    t.checkExpect(on.snapshot().startsWith("x count=3 mean=34"), true);
+
+    Histogram big = on.histogram("big");
+    big.record(Long.MAX_VALUE);
+    t.checkExpect(big.buckets.length(), 64);
+    t.checkExpect(big.buckets.get(63), 1L);
+    t.checkExpect(big.percentile(1.0), Long.MAX_VALUE);
+  }
+
+  // Test that the game records its hot paths into an enabled registry
+  void testGameMetrics(Tester t) {
+    Metrics metrics = new Metrics(true);
+    LightEmAll game = new LightEmAll(new SquareTopology(3, 3), 50, metrics);
+    t.checkExpect(metrics.histogram("board.sort.nanos").count.sum(), 1L);
+    t.checkExpect(metrics.histogram("power.visited").count.sum(), 1L);
+    game.makeScene();
+    t.checkExpect(metrics.histogram("scene.tiles").max.get(), 9L);
+    t.checkExpect(metrics.histogram("scene.images").max.get() >= 9L, true);
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onTick();
+    t.checkExpect(metrics.histogram("input.nanos").count.sum(), 1L);
+    t.checkExpect(metrics.histogram("input.events").max.get(), 2L);
+    t.checkExpect(metrics.histogram("power.visited").count.sum(), 2L);
+  }
+
+  // Test that a seed reproduces the same board
+  void testSeededBoard(Tester t) {
+    LightEmAll a = new LightEmAll(new SquareTopology(5, 5), 50, new Metrics(false), new Random(7));
+    LightEmAll b = new LightEmAll(new SquareTopology(5, 5), 50, new Metrics(false), new Random(7));
+    boolean same = true;
+    for (int i = 0; i < a.nodes.size(); i = i + 1) {
+      same = same && a.nodes.get(i).wires == b.nodes.get(i).wires;
+    }
+    t.checkExpect(same, true);
+  }
+
+  // Test for BoardSolver
+  void testBoardSolver(Tester t) {
+    // a 3x1 line: dead end, straight, dead end; only one way to light it
+    SquareTopology line = new SquareTopology(3, 1);
+    int[] wires = {1 << SquareTopology.TOP, 1 << SquareTopology.TOP | 1 << SquareTopology.BOTTOM,
+        1 << SquareTopology.BOTTOM};
+    BoardSolver solver = new BoardSolver(line, wires, 0, 10, 0);
+    t.checkExpect(solver.solve(), 1);
+    t.checkExpect(solver.exhausted(), false);
+
+    // a 3x3 board with a cross in the middle that can be lit two ways
+    SquareTopology square = new SquareTopology(3, 3);
+    int[] cross = {2, 6, 4, 6, 15, 6, 2, 9, 1};
+    t.checkExpect(new BoardSolver(square, cross, 0, 10, 1000).solve(), 2);
+    t.checkExpect(new BoardSolver(square, cross, 0, 1, 1000).solve(), 1);
+    BoardSolver tired = new BoardSolver(square, cross, 0, 10, 0);
+    t.checkExpect(tired.solve(), 0);
+    t.checkExpect(tired.exhausted(), true);
+
+    // every generated board can be solved
+    LightEmAll game = new LightEmAll(new HexTopology(4, 4), 50, new Metrics(false), new Random(3));
+    int[] dealt = new int[16];
+    for (GamePiece gp : game.nodes) {
+      dealt[game.topology.cellId(gp.row, gp.col)] = gp.wires;
+    }
+    t.checkExpect(new BoardSolver(game.topology, dealt, 0, 1, 100000).solve(), 1);
+  }
+
+  // Test for Tally
+  void testTally(Tester t) {
+    Tally tally = new Tally();
+    t.checkExpect(tally.max(), -1);
+    tally.add(2);
+    tally.add(20, 3);
+    Tally other = new Tally();
+    other.add(2);
+    tally.addAll(other);
+    t.checkExpect(tally.total(), 5L);
+    t.checkExpect(tally.counts[2], 2L);
+    t.checkExpect(tally.max(), 20);
+    t.checkExpect(tally.mean(), 12.8);
+  }
+
+  // Test for BoardAnalyzer on boards whose shape is forced
+  void testBoardAnalyzer(Tester t) {
+    BoardStats line = new BoardAnalyzer(new SquareTopology(4, 1), 1, 2, 1000).run(10);
+    t.checkExpect(line.boards, 10L);
+    t.checkExpect(line.leaves.counts[2], 10L);
+    t.checkExpect(line.branching.counts[0], 10L);
+    t.checkExpect(line.diameter.counts[3], 10L);
+    t.checkExpect(line.longestFromPower.counts[3], 10L);
+    t.checkExpect(line.solutions.counts[1], 10L);
+    t.checkExpect(line.degrees.counts[1], 20L);
+    t.checkExpect(line.degrees.counts[2], 20L);
+    t.checkExpect(line.exhausted, 0L);
+
+    BoardStats grid = new BoardAnalyzer(new SquareTopology(6, 6), 1, 2, 100000).run(20);
+    t.checkExpect(grid.boards, 20L);
+    t.checkExpect(grid.degrees.total(), 720L);
+    t.checkExpect(grid.solutions.counts[0], 0L);
+
+    // runs from neighbouring seeds do not share boards
+    BoardAnalyzer first = new BoardAnalyzer(new SquareTopology(6, 6), 1, 2, 100000);
+    BoardAnalyzer second = new BoardAnalyzer(new SquareTopology(6, 6), 2, 2, 100000);
+    t.checkExpect(first.boardSeed(1) == second.boardSeed(0), false);
+    t.checkExpect(first.boardSeed(0) == first.boardSeed(1), false);
+
+    // a board the solver gave up on counts as exhausted, not as a solution count
+    BoardStats stats = new BoardStats(2);
+    BoardReport gaveUp = new BoardReport();
+    gaveUp.degrees = new int[0];
+    gaveUp.solutions = 1;
+    gaveUp.exhausted = true;
+    stats.add(gaveUp);
+    BoardReport many = new BoardReport();
+    many.degrees = new int[0];
+    many.solutions = 2;
+    stats.add(many);
+    t.checkExpect(stats.solutions.counts[1], 0L);
+    t.checkExpect(stats.solutions.counts[2], 1L);
+    t.checkExpect(stats.exhausted, 1L);
+  }
+
+  // Test the CSV written by BoardStats
+  void testBoardStatsCsv(Tester t) throws IOException {
+    BoardStats stats = new BoardStats(2);
+    BoardReport report = new BoardReport();
+    report.degrees = new int[0];
+    report.solutions = 2;
+    stats.add(report);
+    Path path = Files.createTempFile("stats", ".csv");
+    stats.writeCsv(path);
+    String csv = new String(Files.readAllBytes(path));
+    t.checkExpect(csv.startsWith("metric,value,count\n"), true);
+    t.checkExpect(csv.contains("\nsolutions,2+,1\n"), true);
+    t.checkExpect(csv.endsWith("\nexhausted,1,0\n"), true);
+    Files.delete(path);
+  }
+
+  // Test saving and loading a level
+  void testLevelFile(Tester t) throws IOException {
+    Path path = Files.createTempFile("level", ".lea");
+    LightEmAll game = new LightEmAll(new HexTopology(5, 4), 50, new Metrics(false), new Random(1));
+    new LevelFile().save(game, path);
+    t.checkExpect(Files.size(path), (long) LevelFile.HEADER_BYTES + 20);
+
+    LightEmAll loaded = new LevelFile().load(path, 50);
+    t.checkExpect(loaded.topology.levelKind(), LevelFile.HEX);
+    t.checkExpect(loaded.nodes.size(), 20);
+    boolean same = true;
+    for (int i = 0; i < 20; i = i + 1) {
+      same = same && loaded.nodes.get(i).wires == game.nodes.get(i).wires
+          && loaded.nodes.get(i).row == game.nodes.get(i).row
+          && loaded.nodes.get(i).col == game.nodes.get(i).col;
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(loaded.findPiece(0, 0).powerStation, true);
+
+    // sizes that cannot be indexed are rejected before anything is allocated
+    FileChannel out = FileChannel.open(path, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+    out.write(new LevelFile().header(LevelFile.SQUARE, 70000, 70000, 0, 0));
+    out.close();
+    t.checkException(new IOException("Level too large to load: 70000x70000"),
+        new LevelFile(), "load", path, 50);
+    out = FileChannel.open(path, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    out.write(new LevelFile().header(LevelFile.SQUARE, -3, 4, 0, 0));
+    out.close();
+    t.checkException(new IOException("Level has a negative size: -3x4"),
+        new LevelFile(), "load", path, 50);
+    Files.delete(path);
+  }
+
+  // Test that the streaming generator writes a solvable spanning-tree board
+  void testStreamingBoardGenerator(Tester t) throws IOException {
+    Path path = Files.createTempFile("stream", ".lea");
+    StreamingBoardGenerator generator = new StreamingBoardGenerator(7, 9, new Random(5));
+    t.checkExpect(generator.generate(path), 63L);
+    t.checkExpect(generator.cellsPerSecond > 0, true);
+
+    LightEmAll loaded = new LevelFile().load(path, 50);
+    t.checkExpect(loaded.topology.levelKind(), LevelFile.SQUARE);
+    t.checkExpect(loaded.width, 7);
+    t.checkExpect(loaded.height, 9);
+    int[] dealt = new int[63];
+    int ends = 0;
+    for (GamePiece gp : loaded.nodes) {
+      dealt[loaded.topology.cellId(gp.row, gp.col)] = gp.wires;
+      ends = ends + Integer.bitCount(gp.wires);
+    }
+    t.checkExpect(ends, 2 * 62);
+    t.checkExpect(new BoardSolver(loaded.topology, dealt, 0, 1, 1000000).solve(), 1);
+
+    StreamingBoardGenerator line = new StreamingBoardGenerator(5, 1, new Random(5));
+    line.generate(path);
+    int[] row = new int[5];
+    LightEmAll loadedLine = new LevelFile().load(path, 50);
+    for (GamePiece gp : loadedLine.nodes) {
+      row[gp.col] = Integer.bitCount(gp.wires);
+    }
+    t.checkExpect(Arrays.equals(row, new int[] {1, 2, 2, 2, 1}), true);
+
+    t.checkException(new IllegalArgumentException("Board size must be positive: 0x4"),
+        new StreamingBoardGenerator(0, 4, new Random(5)), "generate", path);
+    t.checkException(new IllegalArgumentException("Board size must be positive: 4x-1"),
+        new StreamingBoardGenerator(4, -1, new Random(5)), "generate", path);
+    t.checkExpect(Files.size(path), (long) LevelFile.HEADER_BYTES + 5);
+    Files.delete(path);
+  }
+
+  // Test that queued clicks are merged per cell and applied once per tick
+  void testInputCoalescing(Tester t) {
+    Metrics metrics = new Metrics(true);
+    LightEmAll game = new LightEmAll(new SquareTopology(4, 4), 50, metrics, new Random(2));
+    GamePiece corner = game.findPiece(0, 0);
+    GamePiece other = game.findPiece(2, 1);
+    int cornerWires = corner.wires;
+    int otherWires = other.wires;
+
+    // 10,001 turns of one cell and 4 of another within one tick
+    for (int i = 0; i < 10001; i = i + 1) {
+      game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    }
+    for (int i = 0; i < 4; i = i + 1) {
+      game.onMouseClicked(new Posn(75, 120), "LeftButton");
+    }
+    t.checkExpect(corner.wires, cornerWires);
+    t.checkExpect(game.input.events, 10005);
+    t.checkExpect(game.input.touchedCount, 2);
+
+    game.onTick();
+    t.checkExpect(corner.wires, game.topology.rotate(cornerWires));
+    t.checkExpect(other.wires, otherWires);
+    t.checkExpect(metrics.histogram("power.visited").count.sum(), 2L);
+    t.checkExpect(game.input.isEmpty(), true);
+    t.checkExpect(game.input.turns[0], 0);
+
+    // an empty tick does no work
+    game.onTick();
+    t.checkExpect(metrics.histogram("power.visited").count.sum(), 2L);
+  }
+
+  // Test that makeScene only rebuilds images of tiles that changed
+  void testTileImageCache(Tester t) {
+    LightEmAll game = new LightEmAll(new SquareTopology(3, 3), 50, new Metrics(false),
+        new Random(4));
+    game.makeScene();
+    WorldImage corner = game.tileImages[0];
+    WorldImage far = game.tileImages[8];
+    boolean farPowered = game.findPiece(2, 2).powered;
+    game.makeScene();
+    t.checkExpect(game.tileImages[0] == corner, true);
+
+    game.onMouseClicked(new Posn(10, 10), "LeftButton");
+    game.onTick();
+    game.makeScene();
+    t.checkExpect(game.tileImages[0] == corner, false);
+    // the far tile was not turned, so it is redrawn only if its power changed
+    t.checkExpect(game.tileImages[8] == far, game.findPiece(2, 2).powered == farPowered);
+  }
+
+  // Test moving the power station across the wrap of a narrow torus
+  void testMovePowerStationOnTorus(Tester t) {
+    LightEmAll game = new LightEmAll(new TorusTopology(2, 1), 50);
+    GamePiece p0 = game.findPiece(0, 0);
+    GamePiece p1 = game.findPiece(0, 1);
+    p0.wires = 1 << SquareTopology.RIGHT;
+    p1.wires = 1 << SquareTopology.LEFT;
+    game.onKeyEvent("left");
+    game.onTick();
+    t.checkExpect(game.powerCol, 0);
+
+    p0.wires = 1 << SquareTopology.LEFT;
+    p1.wires = 1 << SquareTopology.RIGHT;
+    game.onKeyEvent("left");
+    game.onTick();
+    t.checkExpect(game.powerCol, 1);
+    t.checkExpect(p1.powerStation, true);
+    t.checkExpect(p0.powerStation, false);
+  }
+
+  // Test that a key press queued before a click in the same tick is applied first
+  void testInputOrder(Tester t) {
+    LightEmAll game = new LightEmAll(2, 1, 50);
+    GamePiece p0 = game.findPiece(0, 0);
+    GamePiece p1 = game.findPiece(0, 1);
+    p0.wires = 1 << SquareTopology.RIGHT;
+    p1.wires = 1 << SquareTopology.LEFT;
+    game.onKeyEvent("right");
+    game.onMouseClicked(new Posn(75, 25), "LeftButton");
+    game.onTick();
+    t.checkExpect(game.powerCol, 1);
+    t.checkExpect(p1.wires, 1 << SquareTopology.TOP);
+
+    // and a click queued before a key press is applied before it
+    LightEmAll game2 = new LightEmAll(2, 1, 50);
+    GamePiece q0 = game2.findPiece(0, 0);
+    GamePiece q1 = game2.findPiece(0, 1);
+    q0.wires = 1 << SquareTopology.RIGHT;
+    q1.wires = 1 << SquareTopology.LEFT;
+    game2.onMouseClicked(new Posn(75, 25), "LeftButton");
+    game2.onKeyEvent("right");
+    game2.onMouseClicked(new Posn(75, 25), "LeftButton");
+    game2.onMouseClicked(new Posn(75, 25), "LeftButton");
+    game2.onMouseClicked(new Posn(75, 25), "LeftButton");
+    game2.onTick();
+    t.checkExpect(game2.powerCol, 0);
+    t.checkExpect(q1.wires, 1 << SquareTopology.LEFT);
+    t.checkExpect(game2.input.logCount, 0);
+  }
 }
\ No newline at end of file